@@ -1,17 +1,24 @@
 package attributes;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
+import metrics.AuditLog;
+
 /**
  * An object class used to store information about the user's account, which
  * includes the account's username, password and the last known action of the
  * security status of files which is denoted by the user. If any information is
  * changed about the account it is updated both in the file and in this object,
- * regularly.
+ * regularly. The information is kept by an {@link AccountStore}, which appends
+ * each change to a journal rather than rewriting info.dat.
+ *
+ * The password is kept as a salted hash made by {@link PasswordHasher}. A
+ * plaintext password left in info.dat by an older version is replaced by its
+ * hash the first time it is logged in with. Logging in opens a session in a
+ * {@link SessionCache}, and while it is open the user is not asked for their
+ * password again, see {@link #isAuthenticated()}.
  */
 
 public class Account {
@@ -20,36 +27,37 @@ public class Account {
     private String pass;
     public String lastAction;
 
-    private static Scanner in = new Scanner(System.in);
+    private final AccountStore store;
+    private final PasswordHasher hasher = PasswordHasher.fromProperty();
+    private final SessionCache sessions = SessionCache.fromProperty();
+    private volatile String session;
+
+    // Created on first use, the batch and daemon logins never read the console
+    private static Scanner in;
 
     /**
      * Creates an new {@code Account} that sets the current username, password, and
-     * last action of the user's account through the private currentInfo() method
+     * last action of the user's account from the info.dat file and its journal
      * 
-     * @throws FileNotFoundException if it can not find the file found that is
-     *                               denoted by the {@link #currentInfo()} method
+     * @throws IOException if the account info file is not found or can not be
+     *                     read
      */
-    public Account() throws FileNotFoundException {
+    public Account() throws IOException {
+        this.store = new AccountStore(Paths.get("info.dat"));
         currentInfo();
     }
 
     /**
-     * Gets current info about the current user account's username and password and
-     * sets them into private variables. Private as it is invoked by
-     * {@link #resetPassword(FileWriter, File, File)},
-     * {@link #changeUser(FileWriter, File, File)}, and
-     * {@link #updateAction(String)} and does not need to be accessed outside of
-     * this class by other classes or the user
-     * 
-     * @throws FileNotFoundException if account info file is not found
+     * Gets current info about the current user account's username and password
+     * from the store, which holds it in memory, and sets them into private
+     * variables. Private as it is invoked by {@link #resetPassword()},
+     * {@link #changeUser()}, and {@link #updateAction(String)} and does not need
+     * to be accessed outside of this class by other classes or the user
      */
-    private void currentInfo() throws FileNotFoundException {
-        Scanner cur = new Scanner(new File("info.dat"));
-        this.user = cur.nextLine();
-        this.pass = cur.nextLine();
-        this.lastAction = cur.nextLine();
-        cur.close();
-
+    private void currentInfo() {
+        this.user = store.getUser();
+        this.pass = store.getPass();
+        this.lastAction = store.getAction();
     }
 
     /**
@@ -64,23 +72,24 @@ public class Account {
 
     public boolean login() throws IOException {
 
-        System.out.println("User Name:");
-        String user = in.nextLine();
-        System.out.println("Password:");
-        String password = in.nextLine();
+        while (true) {
+            System.out.println("User Name:");
+            String user = console().nextLine();
+            System.out.println("Password:");
+            String password = console().nextLine();
+
+            if (authenticate(user, password))
+                return true;
 
-        if (user.equals(this.user) && password.equals(this.pass))
-            return true;
-        else {
             System.out.println("Incorrect username or password!");
             System.out.println("Would you like to reset your password or find username? (y/n)");
-            String chg = in.nextLine();
+            String chg = console().nextLine();
             if (chg.equals("y")) {
                 System.out.println("What would you like to do, username or password? ");
-                chg = in.nextLine();
+                chg = console().nextLine();
                 if (chg.equals("password")) {
                     System.out.println("Please confirm the username first");
-                    if (in.nextLine().equals(this.user))
+                    if (console().nextLine().equals(this.user))
                         this.changeInfo("password");
                     else
                         System.out.println("Wrong user!");
@@ -88,120 +97,124 @@ public class Account {
                     System.out.printf("Your username is: %s\n", this.user);
             } else
                 System.out.println("Please try agian!");
+        }
+
+    }
 
+    /**
+     * Checks a username and password against the account without prompting the
+     * user, used by the non-interactive front ends. Both are compared in constant
+     * time, and both are always compared so a wrong username takes as long as a
+     * wrong password. Every attempt is recorded in the {@link AuditLog}. On
+     * success a session is opened, and a password stored in plaintext or hashed
+     * at a lower cost than is now configured is hashed again and written back.
+     * 
+     * @param user     The username to check
+     * @param password The password to check
+     * @return {@code true} if both match the account info, {@code false} otherwise
+     * @throws IOException if a password that needed hashing again can not be
+     *                     written
+     */
+    public boolean authenticate(String user, String password) throws IOException {
+        boolean userMatches = PasswordHasher.equal(this.user, user);
+        boolean passMatches = PasswordHasher.verify(password, this.pass);
+        AuditLog.get().login(user, userMatches && passMatches);
+        if (!userMatches || !passMatches)
+            return false;
+
+        if (hasher.needsRehash(this.pass)) {
+            store.put(AccountStore.PASS, hasher.hash(password));
+            store.compact();
+            currentInfo();
         }
 
-        return login();
+        session = sessions.open();
+        return true;
+    }
 
+    /**
+     * Checks if the user logged in recently enough that their session is still
+     * open, in which case privileged operations need not ask for their password
+     * again
+     * 
+     * @return {@code true} if the session opened by the last successful login has
+     *         not expired
+     */
+    public boolean isAuthenticated() {
+        return sessions.isValid(session);
+    }
+
+    /**
+     * Closes the session opened by the last successful login, so the password is
+     * asked for again
+     */
+    public void logout() {
+        sessions.close(session);
+        session = null;
     }
 
     /**
      * Changes the field with in the user's account information with either the
-     * username or password. Creates a {@code File} object of the current account
-     * file (info.dat) and creates a tmp {@code File} object, which is where the new
-     * information will be written to using {@code FileWriter}. It then refers to
-     * one of two methods, depending one which field the user wants to change.
+     * username or password. It refers to one of two methods, depending one which
+     * field the user wants to change.
      * 
      * Using either:
      * 
-     * {@link #resetPassword(FileWriter, File, File)} or
-     * {@link #changeUser(FileWriter, File, File)}
+     * {@link #resetPassword()} or
+     * {@link #changeUser()}
      * 
      * @param field the field to be changed with in account
-     * @throws IOException if cur file or tmp file is not found
-     * @see java.io.File#createNewFile()
-     * @see java.io.FileWriter
+     * @throws IOException if the change can not be written
      */
 
     public void changeInfo(String field) throws IOException {
-        File cur = new File("info.dat");
-
-        File tmp = new File("tmp.dat");
-        tmp.createNewFile();
-
-        FileWriter fw = new FileWriter(tmp);
-
         switch (field) {
             case "username":
-                changeUser(fw, cur, tmp);
+                changeUser();
                 break;
             case "password":
-                resetPassword(fw, cur, tmp);
+                resetPassword();
                 break;
 
         }
     }
 
     /**
-     * Method used to reset the password, writes uses {@code FileWriter} to wrtie
-     * all of the information that is not being changed to the new account
-     * information file. Then uses {@code Scanner} to obtain the new password from
-     * the user, uses {@code FileWriter} again to write the new pasword to the file.
-     * Deletes the old account info file and renames the new file to info.dat.
-     * then updates the account info variables (username, password, lastaction)
-     * using {@link #currentInfo()} method. Private because it is invoked by the
+     * Method used to reset the password, uses {@code Scanner} to obtain the new
+     * password from the user and writes its hash to the account's journal, closing
+     * every session opened with the old password. Then updates
+     * the account info variables (username, password, lastaction) using
+     * {@link #currentInfo()} method. Private because it is invoked by the
      * {@link #changeInfo(String)} method and does not need to be accessed outside
      * of class or by user.
      * 
-     * @param fw  {@code FileWriter} object to write information to new file
-     * @param cur Old info {@code File} object
-     * @param tmp New info {@code File} object
-     * @throws IOException if {@code FileWriter} object finds the file and it exists
-     *                     but it is in a different directory, cannot be created, or
-     *                     cannot be opened for any other reason
-     * @see java.io.FileWriter
+     * @throws IOException if the new password can not be written
      */
 
-    private void resetPassword(FileWriter fw, File cur, File tmp) throws IOException {
-
-        fw.write(user + "\n");
+    private void resetPassword() throws IOException {
 
         System.out.println("What would you like your new password to be?");
-        fw.write(in.nextLine() + "\n");
-
-        fw.write(this.lastAction);
-
-        fw.flush();
-        fw.close();
-
-        cur.delete();
-        tmp.renameTo(cur);
+        store.put(AccountStore.PASS, hasher.hash(console().nextLine()));
+        sessions.clear();
+        session = null;
 
         currentInfo();
 
     }
 
     /**
-     * Method used to change the username, writes uses {@code FileWriter} to wrtie
-     * all of the information that is not being changed to the new account
-     * information file. Then uses {@code Scanner} to obtain the new username from
-     * the user, uses {@code FileWriter} again to write the new username to the
-     * file.
-     * Deletes the old account info file and renames the new file to info.dat.
-     * then updates the account info variables (username, password, lastaction)
-     * using {@link #currentInfo()}
+     * Method used to change the username, uses {@code Scanner} to obtain the new
+     * username from the user and writes it to the account's journal. Then updates
+     * the account info variables (username, password, lastaction) using
+     * {@link #currentInfo()}
      * 
-     * @param fw  The {@code FileWriter} object used to write the new information to
-     *            the new file
-     * @param cur Old info {@code File} object
-     * @param tmp New info {@Code File} object
-     * @throws IOException if {@code FileWriter} finds the file and it exists but it
-     *                     is in adifferent directory, cannot be created,
-     *                     or cannot be opened for any other reason
+     * @throws IOException if the new username can not be written
      */
 
-    public void changeUser(FileWriter fw, File cur, File tmp) throws IOException {
+    public void changeUser() throws IOException {
 
         System.out.println("What would you like your new user name to be?");
-        fw.write(in.nextLine() + "\n");
-        fw.write(this.pass + "\n");
-        fw.write(this.lastAction);
-
-        fw.flush();
-        fw.close();
-
-        cur.delete();
-        tmp.renameTo(cur);
+        store.put(AccountStore.USER, console().nextLine());
 
         currentInfo();
 
@@ -209,40 +222,17 @@ public class Account {
 
     /**
      * Updates the last action of the security of the files in the denoted directory
-     * by the user, uses the same concept as the
-     * {@link #changeUser(FileWriter, File, File)} and
-     * {@link #resetPassword(FileWriter, File, File)} methods. It creates a
-     * {@code File} Object of the current account info file, and a {@code File}
-     * Object of the new account info file. Creates a {@code FileWriter} Object used
-     * to write to the new info file. Writes the information that is not being
-     * changed i.e. the user's account and password. Uses the action variable to
-     * determine what to write, which is either "locked" or "unlocked". Then updates
-     * the account info variables through {@link #currentInfo()} method
+     * by the user. Only a single record is appended to the account's journal, the
+     * info.dat file is left as it is until the journal is folded back into it.
+     * Then updates the account info variables through {@link #currentInfo()}
+     * method
      * 
      * @param action The new current status of the user's files
-     * @throws IOException if {@code FileWriter} finds the file and it exists but it
-     *                     is in adifferent directory, cannot be created,
-     *                     or cannot be opened for any other reason
-     * @see java.io.File#createNewFile()
+     * @throws IOException if the change can not be written
      */
     public void updateAction(String action) throws IOException {
 
-        File cur = new File("info.dat");
-
-        File tmp = new File("tmp.dat");
-        tmp.createNewFile();
-
-        FileWriter fw = new FileWriter(tmp);
-
-        fw.write(this.user + "\n");
-        fw.write(this.pass + "\n");
-        fw.write(action);
-
-        fw.flush();
-        fw.close();
-
-        cur.delete();
-        tmp.renameTo(cur);
+        store.put(AccountStore.ACTION, action);
 
         currentInfo();
 
@@ -259,4 +249,10 @@ public class Account {
         return user;
     }
 
+    private static Scanner console() {
+        if (in == null)
+            in = new Scanner(System.in);
+        return in;
+    }
+
 }
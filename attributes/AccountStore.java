@@ -0,0 +1,311 @@
+package attributes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Crash safe store of the account information, used by {@link Account}. The
+ * info.dat file holds a snapshot of the username, password and last action,
+ * one per line, and every change after it is appended as a single record to
+ * the info.journal file next to it, so a change costs one sequential write and
+ * info.dat is never missing. Each record carries a checksum and a record torn
+ * by a crash is dropped when the journal is read back. Writers that commit at
+ * the same time share a single {@code force}, and once the journal grows long
+ * enough it is folded into a new snapshot that replaces info.dat with an atomic
+ * move. The current state is always served from memory.
+ *
+ * The daemon and batch runs may share the same files, so the journal is only
+ * ever appended to, and every append, replay and compaction is made under an
+ * exclusive lock on the journal. Before appending, a store catches up with
+ * whatever other processes wrote since it last looked, reading the snapshot
+ * again if another process replaced it.
+ */
+
+class AccountStore implements AutoCloseable {
+
+    static final String USER = "user";
+    static final String PASS = "pass";
+    static final String ACTION = "action";
+
+    // Records appended before the journal is folded into the snapshot
+    private static final int COMPACT_AFTER = 256;
+
+    private final Path snapshot;
+    private final Path journalFile;
+    private final FileChannel journal;
+
+    private volatile String user;
+    private volatile String pass;
+    private volatile String action;
+
+    // Guards appending to the journal, and the state
+    private final Object appendLock = new Object();
+    private long appended;
+    private int records;
+
+    // The snapshot file the state was read from, and how far into the journal
+    private Object snapshotKey;
+    private long readUpTo;
+
+    // Guards forcing the journal, held by the one writer syncing for the rest
+    private final Object syncLock = new Object();
+    private long synced;
+
+    /**
+     * Opens the store of a snapshot file, replaying every change in its journal
+     *
+     * @param snapshot The snapshot file, info.dat
+     * @throws IOException if the snapshot is missing or malformed, or the journal
+     *                     can not be opened
+     */
+    AccountStore(Path snapshot) throws IOException {
+        this.snapshot = snapshot;
+        this.journalFile = snapshot.resolveSibling("info.journal");
+        this.journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        try {
+            synchronized (appendLock) {
+                FileLock lock = journal.lock();
+                try {
+                    refresh();
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+    }
+
+    String getUser() {
+        return user;
+    }
+
+    String getPass() {
+        return pass;
+    }
+
+    String getAction() {
+        return action;
+    }
+
+    /**
+     * Changes a field of the account and waits until the change is on disk
+     *
+     * @param field One of {@link #USER}, {@link #PASS} or {@link #ACTION}
+     * @param value The new value, which can not contain a line break
+     * @throws IOException if the change can not be written
+     */
+    void put(String field, String value) throws IOException {
+        if (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+            throw new IllegalArgumentException("Account values can not contain line breaks");
+
+        long seq;
+        boolean full;
+        synchronized (appendLock) {
+            FileLock lock = journal.lock();
+            try {
+                refresh();
+                byte[] record = encode(field, value);
+                ByteBuffer buf = ByteBuffer.wrap(record);
+                while (buf.hasRemaining())
+                    journal.write(buf);
+                readUpTo += record.length;
+            } finally {
+                lock.release();
+            }
+            apply(field, value);
+            seq = ++appended;
+            full = ++records >= COMPACT_AFTER;
+        }
+
+        sync(seq);
+
+        if (full)
+            compact();
+    }
+
+    /**
+     * Forces the journal to disk unless another writer already has since the
+     * given record was appended, so writers arriving together share one force
+     */
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= seq)
+                return;
+
+            long upTo;
+            synchronized (appendLock) {
+                upTo = appended;
+            }
+            journal.force(false);
+            synced = upTo;
+        }
+    }
+
+    /**
+     * Writes the current state to a new snapshot, moves it over info.dat
+     * atomically and empties the journal. A crash in between only leaves records
+     * that are replayed over a snapshot which already holds them.
+     *
+     * @throws IOException if the snapshot can not be written
+     */
+    void compact() throws IOException {
+        synchronized (appendLock) {
+            FileLock lock = journal.lock();
+            try {
+                refresh();
+                if (records > 0)
+                    fold();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot and empties the journal, with the journal locked
+     */
+    private void fold() throws IOException {
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        byte[] data = (user + "\n" + pass + "\n" + action).getBytes(StandardCharsets.UTF_8);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining())
+                ch.write(buf);
+            ch.force(true);
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        journal.truncate(0);
+        journal.force(true);
+        snapshotKey = fileKey();
+        readUpTo = 0;
+        records = 0;
+    }
+
+    /**
+     * Catches up with every change other processes made since this store last
+     * looked, with the journal locked. If the snapshot was replaced, or the
+     * journal is shorter than what was read of it, another process compacted
+     * them, so the snapshot is read again and the journal replayed from the
+     * start. Otherwise only the records appended since are replayed.
+     */
+    private void refresh() throws IOException {
+        Object key = fileKey();
+        if (key == null || !key.equals(snapshotKey) || journal.size() < readUpTo) {
+            List<String> lines = Files.readAllLines(snapshot, StandardCharsets.UTF_8);
+            if (lines.size() < 3)
+                throw new IOException("Malformed account file: " + snapshot);
+            this.user = lines.get(0);
+            this.pass = lines.get(1);
+            this.action = lines.get(2);
+            snapshotKey = key;
+            readUpTo = 0;
+            records = 0;
+        }
+
+        if (journal.size() > readUpTo)
+            replay();
+    }
+
+    /**
+     * Gets what identifies the snapshot file, which changes when it is replaced
+     */
+    private Object fileKey() throws IOException {
+        return Files.readAttributes(snapshot, BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * Applies every whole record in the journal after what was already read,
+     * cutting it off at the first record that is torn or does not match its
+     * checksum, with the journal locked
+     */
+    private void replay() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) (journal.size() - readUpTo));
+        try (FileChannel in = FileChannel.open(journalFile, StandardOpenOption.READ)) {
+            while (buf.hasRemaining() && in.read(buf, readUpTo + buf.position()) >= 0)
+                ;
+        }
+        byte[] data = Arrays.copyOf(buf.array(), buf.position());
+        int valid = 0;
+
+        for (int start = 0; start < data.length;) {
+            int end = start;
+            while (end < data.length && data[end] != '\n')
+                end++;
+            if (end == data.length)
+                break;
+
+            String line = new String(data, start, end - start, StandardCharsets.UTF_8);
+            int first = line.indexOf(' ');
+            int second = first < 0 ? -1 : line.indexOf(' ', first + 1);
+            if (second < 0)
+                break;
+
+            String field = line.substring(first + 1, second);
+            String value = line.substring(second + 1);
+            if (!line.substring(0, first).equals(String.format("%08x", checksum(field, value))))
+                break;
+
+            apply(field, value);
+            records++;
+            start = end + 1;
+            valid = start;
+        }
+
+        readUpTo += valid;
+        if (readUpTo < journal.size())
+            journal.truncate(readUpTo);
+    }
+
+    private void apply(String field, String value) {
+        switch (field) {
+            case USER:
+                user = value;
+                break;
+            case PASS:
+                pass = value;
+                break;
+            case ACTION:
+                action = value;
+                break;
+        }
+    }
+
+    private static byte[] encode(String field, String value) {
+        return String.format("%08x %s %s\n", checksum(field, value), field, value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long checksum(String field, String value) {
+        CRC32 crc = new CRC32();
+        crc.update((field + " " + value).getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+     * Folds the journal into the snapshot and closes it
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            compact();
+        } finally {
+            journal.close();
+        }
+    }
+
+}
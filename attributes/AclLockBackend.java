@@ -0,0 +1,110 @@
+package attributes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.UserPrincipal;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.attribute.UserPrincipalNotFoundException;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Locks files through their access control list, for file systems such as NTFS
+ * and NFSv4 where the list rather than permission bits decides who can write.
+ * Locking puts an entry denying everyone write access at the front of the
+ * list, which is checked before any entry that allows it, and unlocking removes
+ * that entry again, leaving every other entry of the list as it was. Each is a
+ * single read and a single write of the list.
+ */
+
+class AclLockBackend implements LockBackend {
+
+    private static final EnumSet<AclEntryPermission> WRITE = EnumSet.of(AclEntryPermission.WRITE_DATA,
+            AclEntryPermission.APPEND_DATA, AclEntryPermission.WRITE_NAMED_ATTRS);
+
+    // Principal denied write access, looked up on the first lock
+    private volatile UserPrincipal everyone;
+
+    @Override
+    public String name() {
+        return "acl";
+    }
+
+    @Override
+    public boolean isSupported(Path p) {
+        try {
+            return Files.getFileStore(p).supportsFileAttributeView(AclFileAttributeView.class);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean lock(Path p) throws IOException {
+        AclFileAttributeView view = view(p);
+        List<AclEntry> acl = view.getAcl();
+        AclEntry deny = deny(p);
+        if (!acl.contains(deny)) {
+            acl.add(0, deny);
+            view.setAcl(acl);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean unlock(Path p) throws IOException {
+        AclFileAttributeView view = view(p);
+        List<AclEntry> acl = view.getAcl();
+        if (acl.removeIf(deny(p)::equals))
+            view.setAcl(acl);
+        return true;
+    }
+
+    @Override
+    public boolean isLocked(Path p) throws IOException {
+        return view(p).getAcl().contains(deny(p));
+    }
+
+    private AclEntry deny(Path p) throws IOException {
+        return AclEntry.newBuilder().setType(AclEntryType.DENY).setPrincipal(everyone(p)).setPermissions(WRITE)
+                .build();
+    }
+
+    /**
+     * Looks up the group every user is in, which is called Everyone on Windows
+     * and EVERYONE@ on NFSv4, falling back to the file's owner
+     */
+    private UserPrincipal everyone(Path p) throws IOException {
+        UserPrincipal who = everyone;
+        if (who != null)
+            return who;
+
+        UserPrincipalLookupService lookup = p.getFileSystem().getUserPrincipalLookupService();
+        for (String name : new String[] { "Everyone", "EVERYONE@" }) {
+            try {
+                who = lookup.lookupPrincipalByGroupName(name);
+                break;
+            } catch (UserPrincipalNotFoundException e) {
+                // try the next name
+            }
+        }
+        if (who == null)
+            who = view(p).getOwner();
+
+        everyone = who;
+        return who;
+    }
+
+    private static AclFileAttributeView view(Path p) {
+        AclFileAttributeView view = Files.getFileAttributeView(p, AclFileAttributeView.class);
+        if (view == null)
+            throw new UnsupportedOperationException("No access control list on " + p);
+        return view;
+    }
+
+}
@@ -0,0 +1,73 @@
+package attributes;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The backend of wfs.lock.backend=auto, which hands every file to the cheapest
+ * backend that works on the file's own file system. The backends are measured
+ * in the folder of the first file seen on each file system, which is inside the
+ * workspace being opened rather than wherever the program was started, and the
+ * choice is kept for every later file there. When that folder can not be
+ * measured, because it is locked or gone, the legacy backend is used for the
+ * file without keeping the choice.
+ */
+
+class AutoLockBackend implements LockBackend {
+
+    // Backend picked for each file system, measured on the first file seen there
+    private final Map<FileStore, LockBackend> chosen = new ConcurrentHashMap<>();
+
+    private final LockBackend fallback = new LegacyLockBackend();
+
+    @Override
+    public String name() {
+        return "auto";
+    }
+
+    @Override
+    public boolean isSupported(Path p) {
+        return true;
+    }
+
+    @Override
+    public boolean lock(Path p) throws IOException {
+        return backend(p).lock(p);
+    }
+
+    @Override
+    public boolean unlock(Path p) throws IOException {
+        return backend(p).unlock(p);
+    }
+
+    @Override
+    public boolean isLocked(Path p) throws IOException {
+        return backend(p).isLocked(p);
+    }
+
+    private LockBackend backend(Path p) throws IOException {
+        FileStore store = Files.getFileStore(p);
+        LockBackend b = chosen.get(store);
+        if (b != null)
+            return b;
+
+        synchronized (this) {
+            b = chosen.get(store);
+            if (b == null) {
+                Path dir = Files.isDirectory(p) ? p : p.toAbsolutePath().getParent();
+                try {
+                    b = LockBackends.cheapest(dir);
+                } catch (IOException e) {
+                    return fallback;
+                }
+                chosen.put(store, b);
+            }
+            return b;
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package attributes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+
+/**
+ * The original way files are locked, through {@link java.io.File#setReadOnly()}
+ * and {@link java.io.File#setWritable(boolean)}. Works on every file system,
+ * but unlocking only gives write permission back to the owner.
+ */
+
+class LegacyLockBackend implements LockBackend {
+
+    @Override
+    public String name() {
+        return "legacy";
+    }
+
+    @Override
+    public boolean isSupported(Path p) {
+        return true;
+    }
+
+    @Override
+    public boolean lock(Path p) {
+        return p.toFile().setReadOnly();
+    }
+
+    @Override
+    public boolean unlock(Path p) {
+        return p.toFile().setWritable(true);
+    }
+
+    /**
+     * Where the file system has POSIX permissions the owner's write permission is
+     * checked, as {@link java.io.File#canWrite()} is always true for a superuser
+     * no matter what the permissions are.
+     */
+    @Override
+    public boolean isLocked(Path p) {
+        try {
+            return !Files.getPosixFilePermissions(p).contains(PosixFilePermission.OWNER_WRITE);
+        } catch (UnsupportedOperationException | IOException e) {
+            return !p.toFile().canWrite();
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package attributes;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The way a {@link SrcFile} is locked, unlocked and checked on disk. Different
+ * file systems enforce read only files in different ways, through permission
+ * bits, access control lists or file attributes, and the cheapest way that
+ * still works differs between them, so the backend used by every
+ * {@code SrcFile} can be chosen with {@link SrcFile#setBackend(LockBackend)}.
+ * {@link LockBackends} holds every backend and measures what each of them costs
+ * per file.
+ */
+
+public interface LockBackend {
+
+    /**
+     * Gets the name the backend is chosen by
+     *
+     * @return The backend's name
+     */
+    String name();
+
+    /**
+     * Checks if the file system of a path supports this backend
+     *
+     * @param p A path on the file system
+     * @return {@code true} if the backend can lock files there
+     */
+    boolean isSupported(Path p);
+
+    /**
+     * Makes a file read only
+     *
+     * @param p The file
+     * @return {@code true} if the file was locked
+     * @throws IOException if the file's attributes can not be written
+     */
+    boolean lock(Path p) throws IOException;
+
+    /**
+     * Makes a file writable again
+     *
+     * @param p The file
+     * @return {@code true} if the file was unlocked
+     * @throws IOException if the file's attributes can not be written
+     */
+    boolean unlock(Path p) throws IOException;
+
+    /**
+     * Reads if a file is locked the way this backend locks files
+     *
+     * @param p The file
+     * @return {@code true} if the file is locked
+     * @throws IOException if the file's attributes can not be read
+     */
+    boolean isLocked(Path p) throws IOException;
+
+}
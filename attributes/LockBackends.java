@@ -0,0 +1,240 @@
+package attributes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Every {@link LockBackend} there is, and the means to pick one. Backends are
+ * picked by name, or by measuring what each of the backends supported on a
+ * workspace's file system costs per file and taking the cheapest one that
+ * really does lock and unlock files there and whose locked files really can
+ * not be opened for writing, see {@link #measure(Path, int)}.
+ */
+
+public final class LockBackends {
+
+    /**
+     * What a backend costs per file, measured on a scratch file
+     */
+    public static class Cost {
+        private final LockBackend backend;
+        private final boolean correct;
+        private final long lockNanos;
+        private final long unlockNanos;
+        private final long checkNanos;
+
+        Cost(LockBackend backend, boolean correct, long lockNanos, long unlockNanos, long checkNanos) {
+            this.backend = backend;
+            this.correct = correct;
+            this.lockNanos = lockNanos;
+            this.unlockNanos = unlockNanos;
+            this.checkNanos = checkNanos;
+        }
+
+        /**
+         * Gets the backend that was measured
+         *
+         * @return The backend
+         */
+        public LockBackend getBackend() {
+            return backend;
+        }
+
+        /**
+         * Checks if the backend's locks could be seen, refused writes and could be
+         * undone on the file system it was measured on
+         *
+         * @return {@code true} if the backend works there
+         */
+        public boolean isCorrect() {
+            return correct;
+        }
+
+        /**
+         * Gets the mean time to lock one file
+         *
+         * @return The time in nanoseconds
+         */
+        public long getLockNanos() {
+            return lockNanos;
+        }
+
+        /**
+         * Gets the mean time to unlock one file
+         *
+         * @return The time in nanoseconds
+         */
+        public long getUnlockNanos() {
+            return unlockNanos;
+        }
+
+        /**
+         * Gets the mean time to check if one file is locked
+         *
+         * @return The time in nanoseconds
+         */
+        public long getCheckNanos() {
+            return checkNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d ns to lock, %d ns to unlock, %d ns to check per file%s", backend.name(),
+                    lockNanos, unlockNanos, checkNanos, correct ? "" : " (does not work here)");
+        }
+    }
+
+    private LockBackends() {
+    }
+
+    /**
+     * Gets every backend, whether or not it is supported here
+     *
+     * @return A new instance of every backend
+     */
+    public static List<LockBackend> all() {
+        return List.of(new LegacyLockBackend(), new PosixLockBackend(), new AclLockBackend());
+    }
+
+    /**
+     * Gets the backend to use from the wfs.lock.backend system property, the
+     * legacy backend if it is not set. For auto nothing is measured yet, the
+     * backend measures the file system of each workspace the first time one of
+     * its files is locked or checked, see {@link AutoLockBackend}
+     *
+     * @return The chosen backend
+     */
+    static LockBackend fromProperty() {
+        String name = System.getProperty("wfs.lock.backend", "legacy");
+        if (name.equals("auto"))
+            return new AutoLockBackend();
+        try {
+            return choose(name, Path.of("").toAbsolutePath());
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.printf("Lock backend %s can not be used, using legacy: %s%n", name, e.getMessage());
+            return new LegacyLockBackend();
+        }
+    }
+
+    /**
+     * Gets a backend by its name, or the cheapest that works in a folder for auto
+     *
+     * @param name The backend's name, or auto
+     * @param dir  The folder it has to work in
+     * @return The backend
+     * @throws IOException              if the backends can not be measured
+     * @throws IllegalArgumentException if there is no backend of that name, or it
+     *                                  is not supported in the folder
+     */
+    public static LockBackend choose(String name, Path dir) throws IOException {
+        if (name.equals("auto"))
+            return cheapest(dir);
+
+        for (LockBackend b : all()) {
+            if (b.name().equals(name)) {
+                if (!b.isSupported(dir))
+                    throw new IllegalArgumentException("The " + name + " lock backend is not supported in " + dir);
+                return b;
+            }
+        }
+        throw new IllegalArgumentException("Unknown lock backend: " + name);
+    }
+
+    /**
+     * Gets the cheapest backend that works in a folder
+     *
+     * @param dir The folder
+     * @return The cheapest working backend, the legacy backend if none work
+     * @throws IOException if the backends can not be measured
+     */
+    public static LockBackend cheapest(Path dir) throws IOException {
+        for (Cost c : measure(dir, 200)) {
+            if (c.isCorrect())
+                return c.getBackend();
+        }
+        return new LegacyLockBackend();
+    }
+
+    /**
+     * Measures every backend supported in a folder by locking, checking and
+     * unlocking a scratch file there over and over, after as many untimed rounds
+     * to warm up
+     *
+     * @param dir    The folder
+     * @param rounds How many times the file is locked and unlocked
+     * @return The cost of every supported backend, the working ones first and
+     *         otherwise cheapest first
+     * @throws IOException if the scratch file can not be created or removed
+     */
+    public static List<Cost> measure(Path dir, int rounds) throws IOException {
+        List<Cost> costs = new ArrayList<>();
+        Path probe = Files.createTempFile(dir, ".wfs-probe", ".tmp");
+
+        try {
+            for (LockBackend b : all()) {
+                if (b.isSupported(probe))
+                    costs.add(measure(b, probe, rounds));
+            }
+        } finally {
+            probe.toFile().setWritable(true);
+            Files.deleteIfExists(probe);
+        }
+
+        costs.sort(Comparator.comparing((Cost c) -> !c.isCorrect())
+                .thenComparingLong(c -> c.getLockNanos() + c.getUnlockNanos()));
+        return costs;
+    }
+
+    private static Cost measure(LockBackend b, Path probe, int rounds) {
+        long lock = 0, unlock = 0, check = 0;
+        boolean correct = true;
+
+        try {
+            // a lock only counts if it is enforced, which it is not for a superuser
+            // on POSIX permissions, or on a file system that ignores them
+            correct &= b.lock(probe) && !writable(probe);
+            correct &= b.unlock(probe) && writable(probe);
+
+            for (int i = 0; i < rounds * 2; i++) {
+                boolean timed = i >= rounds;
+
+                long start = System.nanoTime();
+                correct &= b.lock(probe);
+                long locked = System.nanoTime();
+                correct &= b.isLocked(probe);
+                long checked = System.nanoTime();
+                correct &= b.unlock(probe);
+                long unlocked = System.nanoTime();
+                correct &= !b.isLocked(probe);
+
+                if (timed) {
+                    lock += locked - start;
+                    check += checked - locked;
+                    unlock += unlocked - checked;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return new Cost(b, false, 0, 0, 0);
+        }
+
+        return new Cost(b, correct, lock / rounds, unlock / rounds, check / rounds);
+    }
+
+    /**
+     * Checks if a file can be opened for writing, without writing anything to it
+     */
+    private static boolean writable(Path p) {
+        try {
+            Files.newByteChannel(p, StandardOpenOption.WRITE).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+}
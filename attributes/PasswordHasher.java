@@ -0,0 +1,184 @@
+package attributes;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 hashing of account passwords, so info.dat and its journal never
+ * hold a password in plaintext. A hash is stored as
+ * {@code pbkdf2-sha256$<iterations>$<salt>$<hash>}, with the salt and hash in
+ * Base64, so the cost it was made with travels with it and can be raised later
+ * without breaking older hashes. The cost of new hashes is taken from the
+ * wfs.kdf.iterations system property, see {@link #measure(int, int)} for what a
+ * cost means in time on this machine. Hashes are always compared in constant
+ * time.
+ */
+
+public final class PasswordHasher {
+
+    static final String PREFIX = "pbkdf2-sha256$";
+
+    // Iterations of new hashes when wfs.kdf.iterations is not set
+    public static final int DEFAULT_ITERATIONS = 210_000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+
+    /**
+     * Constructs a {@code PasswordHasher} making hashes of a given cost
+     *
+     * @param iterations The PBKDF2 iteration count of new hashes
+     */
+    public PasswordHasher(int iterations) {
+        if (iterations < 1)
+            throw new IllegalArgumentException("The iteration count must be positive");
+        this.iterations = iterations;
+    }
+
+    /**
+     * Gets a hasher making hashes of the cost given by the wfs.kdf.iterations
+     * system property, or {@link #DEFAULT_ITERATIONS} if it is not set
+     *
+     * @return The hasher
+     */
+    public static PasswordHasher fromProperty() {
+        return new PasswordHasher(Integer.getInteger("wfs.kdf.iterations", DEFAULT_ITERATIONS));
+    }
+
+    /**
+     * Gets the iteration count of new hashes
+     *
+     * @return The iteration count
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Hashes a password with a new random salt
+     *
+     * @param password The password
+     * @return The encoded hash, salt and cost
+     */
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$"
+                + b64.encodeToString(derive(password, salt, iterations));
+    }
+
+    /**
+     * Checks a password against a stored hash in constant time. A stored value
+     * that is not a hash is taken as a plaintext password left by an older
+     * version, and is also compared in constant time.
+     *
+     * @param password The password to check
+     * @param stored   The stored hash, or plaintext password
+     * @return {@code true} if the password matches
+     */
+    public static boolean verify(String password, String stored) {
+        if (!isHashed(stored))
+            return equal(password, stored);
+
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4)
+            return false;
+
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] hash = Base64.getDecoder().decode(parts[3]);
+            return MessageDigest.isEqual(hash, derive(password, salt, iterations));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks if a stored value should be hashed again, because it is plaintext or
+     * was made with fewer iterations than this hasher uses
+     *
+     * @param stored The stored hash, or plaintext password
+     * @return {@code true} if it should be replaced by a new hash
+     */
+    public boolean needsRehash(String stored) {
+        if (!isHashed(stored))
+            return true;
+
+        String[] parts = stored.split("\\$");
+        try {
+            return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Checks if a stored value is a hash made by this class
+     *
+     * @param stored The stored value
+     * @return {@code true} if it is a hash rather than a plaintext password
+     */
+    public static boolean isHashed(String stored) {
+        return stored.startsWith(PREFIX);
+    }
+
+    /**
+     * Compares two strings in time that only depends on their length
+     *
+     * @param a The first string
+     * @param b The second string
+     * @return {@code true} if they are equal
+     */
+    static boolean equal(String a, String b) {
+        return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Measures how long hashing one password takes at a given cost, after as
+     * many untimed rounds to warm up
+     *
+     * @param iterations The iteration count to measure
+     * @param rounds     How many passwords are hashed
+     * @return The mean time to hash one password in nanoseconds
+     */
+    public static long measure(int iterations, int rounds) {
+        PasswordHasher hasher = new PasswordHasher(iterations);
+        long nanos = 0;
+
+        for (int i = 0; i < rounds * 2; i++) {
+            long start = System.nanoTime();
+            hasher.hash("benchmark-password-" + i);
+            if (i >= rounds)
+                nanos += System.nanoTime() - start;
+        }
+
+        return nanos / rounds;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+}
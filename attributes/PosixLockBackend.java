@@ -0,0 +1,94 @@
+package attributes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Locks files through their POSIX permissions with
+ * {@link PosixFileAttributeView#setPermissions(Set)}. Locking takes every write
+ * permission away and unlocking gives back the owner's, or the write
+ * permissions named by the wfs.posix.unlocked system property such as
+ * -w--w----, and neither touches the read and execute permissions a file
+ * already has, so scripts and programs stay runnable through a lock and an
+ * unlock. Each is a single read of the permissions, and a single write when
+ * they have to change.
+ */
+
+class PosixLockBackend implements LockBackend {
+
+    private static final Set<PosixFilePermission> WRITE = EnumSet.of(PosixFilePermission.OWNER_WRITE,
+            PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE);
+
+    private final Set<PosixFilePermission> restored;
+
+    /**
+     * Constructs a {@code PosixLockBackend} giving back the write permissions of
+     * the system property, or the owner's
+     */
+    PosixLockBackend() {
+        this(PosixFilePermissions.fromString(System.getProperty("wfs.posix.unlocked", "-w-------")));
+    }
+
+    /**
+     * Constructs a {@code PosixLockBackend} giving back the given write
+     * permissions when a file is unlocked
+     *
+     * @param restored The write permissions of an unlocked file, which must include
+     *                 the owner's, any other permission in it is ignored
+     */
+    PosixLockBackend(Set<PosixFilePermission> restored) {
+        if (!restored.contains(PosixFilePermission.OWNER_WRITE))
+            throw new IllegalArgumentException("Unlocking has to give the owner write permission back");
+        Set<PosixFilePermission> writes = EnumSet.copyOf(restored);
+        writes.retainAll(WRITE);
+        this.restored = writes;
+    }
+
+    @Override
+    public String name() {
+        return "posix";
+    }
+
+    @Override
+    public boolean isSupported(Path p) {
+        return p.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    @Override
+    public boolean lock(Path p) throws IOException {
+        PosixFileAttributeView view = view(p);
+        Set<PosixFilePermission> perms = new HashSet<>(view.readAttributes().permissions());
+        if (perms.removeAll(WRITE))
+            view.setPermissions(perms);
+        return true;
+    }
+
+    @Override
+    public boolean unlock(Path p) throws IOException {
+        PosixFileAttributeView view = view(p);
+        Set<PosixFilePermission> perms = new HashSet<>(view.readAttributes().permissions());
+        if (perms.addAll(restored))
+            view.setPermissions(perms);
+        return true;
+    }
+
+    @Override
+    public boolean isLocked(Path p) throws IOException {
+        return !Files.getPosixFilePermissions(p).contains(PosixFilePermission.OWNER_WRITE);
+    }
+
+    private static PosixFileAttributeView view(Path p) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(p, PosixFileAttributeView.class);
+        if (view == null)
+            throw new UnsupportedOperationException("No POSIX permissions on " + p);
+        return view;
+    }
+
+}
@@ -0,0 +1,102 @@
+package attributes;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory sessions handed out once a password has been checked, so a user
+ * who logged in a moment ago is not made to pay for hashing their password
+ * again on every privileged operation. A session is a random token that stays
+ * valid for a fixed time after it is opened, given in seconds by the
+ * wfs.session.ttl system property, and every session is closed when the
+ * password changes. Tokens are never written anywhere.
+ */
+
+public class SessionCache {
+
+    // Seconds a session stays valid when wfs.session.ttl is not set
+    public static final long DEFAULT_TTL_SECONDS = 300;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long ttlNanos;
+    private final Map<String, Long> expiries = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a {@code SessionCache} whose sessions last a given time
+     *
+     * @param ttl  How long a session stays valid
+     * @param unit The unit of ttl
+     */
+    public SessionCache(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Gets a cache whose sessions last as long as the wfs.session.ttl system
+     * property says, or {@link #DEFAULT_TTL_SECONDS} if it is not set
+     *
+     * @return The cache
+     */
+    public static SessionCache fromProperty() {
+        return new SessionCache(Long.getLong("wfs.session.ttl", DEFAULT_TTL_SECONDS), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Opens a new session, dropping every session that has expired
+     *
+     * @return The session's token
+     */
+    public String open() {
+        long now = System.nanoTime();
+        expiries.values().removeIf(expiry -> now - expiry >= 0);
+
+        byte[] bytes = new byte[24];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        expiries.put(token, now + ttlNanos);
+        return token;
+    }
+
+    /**
+     * Checks if a session is still open
+     *
+     * @param token The session's token, or {@code null}
+     * @return {@code true} if the session was opened and has not expired or been
+     *         closed
+     */
+    public boolean isValid(String token) {
+        if (token == null)
+            return false;
+
+        Long expiry = expiries.get(token);
+        if (expiry == null)
+            return false;
+        if (System.nanoTime() - expiry >= 0) {
+            expiries.remove(token);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Closes a single session
+     *
+     * @param token The session's token
+     */
+    public void close(String token) {
+        if (token != null)
+            expiries.remove(token);
+    }
+
+    /**
+     * Closes every session
+     */
+    public void clear() {
+        expiries.clear();
+    }
+
+}
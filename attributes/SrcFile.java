@@ -1,16 +1,44 @@
 package attributes;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import metrics.AuditLog;
+import metrics.OperationMetrics;
 
 /**
  * Object which mimmicks the the {@code File} object. Used to store any source
- * file in a directory denoted by the user. It can be locked and unlocked
+ * file in a directory denoted by the user. It can be locked and unlocked, in the
+ * way of the {@link LockBackend} shared by every {@code SrcFile}, and every lock
+ * and unlock is recorded in the {@link metrics.AuditLog}. Two {@code SrcFile}s
+ * are equal when they are for the same normalized absolute path, so a file
+ * reached twice is only held once in a set.
  */
 
 public class SrcFile {
 
+    // Backend every file is locked, unlocked and checked through
+    private static volatile LockBackend backend = LockBackends.fromProperty();
+
     private File f;
 
+    // Snapshot of the file's attributes from when it was last scanned or changed
+    private long lastModified;
+    private long size;
+    private boolean locked;
+
+    // Change time of the file when its lock state was last read from disk
+    private long checkedStamp = -1;
+
+    // Normalized absolute path, worked out the first time it is needed
+    private String key;
+
     /**
      * Constrcuts a new {@code SrcFile} and sets the {@code File} object to whatever
      * is passed through in the constructor
@@ -19,6 +47,64 @@ public class SrcFile {
      */
     public SrcFile(File f) {
         this.f = f;
+        this.lastModified = f.lastModified() * 1_000_000L;
+        this.size = f.length();
+        this.locked = isLocked();
+    }
+
+    /**
+     * Constructs a new {@code SrcFile} from attributes that have already been read,
+     * either while scanning the workspace or from the workspace index, so that the
+     * file does not need to be stat'ed again
+     * 
+     * @param f            File to be set to the class vairable, f
+     * @param lastModified The last modified time of the file in nanoseconds
+     * @param size         The size of the file in bytes
+     * @param locked       If the file was read only when it was last seen
+     */
+    public SrcFile(File f, long lastModified, long size, boolean locked) {
+        this.f = f;
+        this.lastModified = lastModified;
+        this.size = size;
+        this.locked = locked;
+    }
+
+    /**
+     * Constructs a new {@code SrcFile} from a snapshot of its attributes kept
+     * elsewhere, along with the change time its lock state was read at, so that
+     * {@link #refreshState()} only reads the lock state again if the file has
+     * changed since
+     * 
+     * @param f            File to be set to the class vairable, f
+     * @param lastModified The last modified time of the file in nanoseconds
+     * @param size         The size of the file in bytes
+     * @param locked       If the file was read only when it was last seen
+     * @param checkedStamp The change time of the file when its lock state was
+     *                     read, or -1 if it is not known
+     */
+    public SrcFile(File f, long lastModified, long size, boolean locked, long checkedStamp) {
+        this(f, lastModified, size, locked);
+        this.checkedStamp = checkedStamp;
+    }
+
+    /**
+     * Gets the backend every file is locked through
+     * 
+     * @return The current {@code LockBackend}
+     */
+    public static LockBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Changes the backend every file is locked through, which starts as the one
+     * named by the wfs.lock.backend system property or the legacy backend
+     * 
+     * @param b The new {@code LockBackend}
+     * @see LockBackends#choose(String, Path)
+     */
+    public static void setBackend(LockBackend b) {
+        backend = b;
     }
 
     /**
@@ -26,32 +112,184 @@ public class SrcFile {
      *
      * @return {@code true} if the file did successfully get set to read only,
      *         {@code false} if otherwise
-     * @see java.io.File#setReadOnly()
+     * @see LockBackend#lock(Path)
      */
     public boolean lockFile() {
-        return this.f.setReadOnly();
+        long start = System.nanoTime();
+        boolean done;
+        try {
+            done = backend.lock(this.f.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            done = false;
+        }
+        OperationMetrics.get().locked(System.nanoTime() - start);
+        AuditLog.get().file(AuditLog.Kind.LOCK, this.f, done);
+        if (done)
+            this.locked = true;
+        this.checkedStamp = -1;
+        return done;
     }
 
     /**
-     * Checks if the file can write
+     * Checks if the file can write, as the backend sees it. A file whose lock
+     * state can not be read counts as locked, as it can not be written either.
      *
      * 
-     * @return {@code true} if it can write, {@code false} if otherwise
-     * @see java.io.File#canWrite()
+     * @return {@code true} if it can not write, {@code false} if otherwise
+     * @see LockBackend#isLocked(Path)
      */
     public boolean isLocked() {
-        return !this.f.canWrite();
+        try {
+            return backend.isLocked(this.f.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            return true;
+        }
     }
 
     /**
      * Unlocks the file to become writable again
      * 
      * @return {@code true} if the operation succeeded, {@code false} otherwise
-     * @see java.io.File#setWritable(boolean)
+     * @see LockBackend#unlock(Path)
      */
 
     public boolean unlockFile() {
-        return this.f.setWritable(true);
+        long start = System.nanoTime();
+        boolean done;
+        try {
+            done = backend.unlock(this.f.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            done = false;
+        }
+        OperationMetrics.get().unlocked(System.nanoTime() - start);
+        AuditLog.get().file(AuditLog.Kind.UNLOCK, this.f, done);
+        if (done)
+            this.locked = false;
+        this.checkedStamp = -1;
+        return done;
+    }
+
+    /**
+     * Reads the lock state of the file from disk, refreshing the snapshot of its
+     * attributes. The change time of the file is read first, and if it is the same
+     * as when the lock state was last read the previous answer is used without
+     * checking the file's permissions again. The change time is used rather than
+     * the modified time as changing a file's permissions does not touch its
+     * modified time, it falls back to the modified time on file systems without
+     * one.
+     * 
+     * @return {@code true} if the file is read only
+     * @throws java.nio.file.NoSuchFileException if the file no longer exists
+     * @throws IOException                       if the file's attributes can not
+     *                                           be read
+     * @see #isLocked()
+     */
+    public boolean refreshState() throws IOException {
+        Path p = this.f.toPath();
+        Map<String, Object> attrs;
+        long stamp;
+
+        try {
+            attrs = Files.readAttributes(p, "unix:ctime,lastModifiedTime,size", LinkOption.NOFOLLOW_LINKS);
+            stamp = ((FileTime) attrs.get("ctime")).to(TimeUnit.NANOSECONDS);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            attrs = Files.readAttributes(p, "lastModifiedTime,size", LinkOption.NOFOLLOW_LINKS);
+            stamp = ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS);
+        }
+
+        this.lastModified = ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS);
+        this.size = (Long) attrs.get("size");
+
+        if (stamp != checkedStamp) {
+            this.locked = isLocked();
+            this.checkedStamp = stamp;
+        }
+
+        return locked;
+    }
+
+    /**
+     * Gets the {@code File} object this {@code SrcFile} wraps
+     * 
+     * @return The wrapped file
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Gets the last modified time of the file, in nanoseconds, as of when it was
+     * last scanned
+     * 
+     * @return The last known modified time
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Gets the size of the file as of when it was last scanned
+     * 
+     * @return The last known size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the change time of the file when its lock state was last read from
+     * disk, to be handed back to
+     * {@link #SrcFile(File, long, long, boolean, long)}
+     * 
+     * @return The change time in nanoseconds, or -1 if it is not known
+     */
+    public long getCheckedStamp() {
+        return checkedStamp;
+    }
+
+    /**
+     * Gets the lock state of the file as of when it was last scanned, locked or
+     * unlocked, without touching the file system
+     * 
+     * @return {@code true} if the file was last known to be read only
+     */
+    public boolean wasLocked() {
+        return locked;
+    }
+
+    /**
+     * Gets the normalized absolute path of the file, which {@link #equals(Object)}
+     * and {@link #hashCode()} go by
+     * 
+     * @return The path as a {@code String}
+     */
+    public String getKey() {
+        String k = key;
+        if (k == null) {
+            String path = f.getPath();
+            // files found by a scan already have a normalized absolute path
+            key = k = isNormalized(path) ? path : f.toPath().toAbsolutePath().normalize().toString();
+        }
+        return k;
+    }
+
+    private boolean isNormalized(String path) {
+        // File already drops doubled and trailing separators
+        String sep = File.separator;
+        return f.isAbsolute() && !path.contains(sep + "." + sep) && !path.contains(sep + ".." + sep)
+                && !path.endsWith(sep + ".") && !path.endsWith(sep + "..");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        return o instanceof SrcFile && getKey().equals(((SrcFile) o).getKey());
+    }
+
+    @Override
+    public int hashCode() {
+        return getKey().hashCode();
     }
 
     @Override
@@ -59,4 +297,4 @@ public class SrcFile {
         return this.f.toString();
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,143 @@
+package bench;
+
+import attributes.SrcFile;
+import find.CompactFileSet;
+import find.FileIndex;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures how much heap a {@link find.FileIndex} holds on to against a
+ * {@code HashSet} of {@code File}s for the same paths, and how fast files are
+ * found in each, and added to and removed from the index. It also compares the
+ * {@link find.CompactFileSet} a workspace's files are kept in with the
+ * concurrent {@code Set} of {@code SrcFile}s they used to be kept in. The paths
+ * are made up in memory rather than written to disk, laid out like a
+ * {@link SyntheticWorkspace}, so trees of millions of files can be measured.
+ * Heap is measured as what is still in use after a garbage collection, so give
+ * the JVM enough of it, -Xmx4g is enough for the default of 2,000,000 files.
+ *
+ * Usage: {@code java bench.FileIndexBenchmark [--files N] [--folders N]}
+ */
+
+public class FileIndexBenchmark {
+
+    public static void main(String[] args) {
+        int files = intArg(args, "--files", 2_000_000);
+        int folders = intArg(args, "--folders", files / 100);
+
+        String root = Paths.get(System.getProperty("java.io.tmpdir"), "wfs-bench").toAbsolutePath().toString();
+        String[] paths = new String[files];
+        for (int i = 0; i < files; i++) {
+            int dir = i % folders;
+            paths[i] = String.format("%s/project%d/src/pkg%d/File%d.java", root, dir / 100, dir % 100, i / folders)
+                    .replace('/', File.separatorChar);
+        }
+
+        System.out.printf("Paths: %d files in %d folders%n%n", files, folders);
+        System.out.printf("%-24s %14s %14s%n", "Set", "Heap (MB)", "B/file");
+
+        long before = usedHeap();
+        // every File gets its own copy of its path, as it would from a scan
+        Set<File> set = new HashSet<>();
+        for (String p : paths)
+            set.add(new File(new String(p.toCharArray())));
+        long hashSet = usedHeap() - before;
+        print("HashSet<File>", hashSet, files);
+
+        before = usedHeap();
+        FileIndex index = new FileIndex();
+        for (String p : paths)
+            index.add(Paths.get(p));
+        long compact = usedHeap() - before;
+        print("FileIndex", compact, files);
+        print("FileIndex.memoryBytes", index.memoryBytes(), files);
+        System.out.printf("%nFileIndex holds %.1f%% of the HashSet, in %d entries%n%n", 100.0 * compact / hashSet,
+                index.entries());
+
+        System.out.printf("%-24s %14s %14s%n", "Source files", "Heap (MB)", "B/file");
+        before = usedHeap();
+        Set<SrcFile> srcSet = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < files; i++)
+            srcSet.add(new SrcFile(new File(new String(paths[i].toCharArray())), i, i, false));
+        long srcBytes = usedHeap() - before;
+        print("Set<SrcFile>", srcBytes, files);
+
+        before = usedHeap();
+        CompactFileSet compactFiles = new CompactFileSet();
+        for (int i = 0; i < files; i++)
+            compactFiles.add(new SrcFile(new File(paths[i]), i, i, false));
+        long compactBytes = usedHeap() - before;
+        print("CompactFileSet", compactBytes, files);
+        print("CompactFileSet.memory", compactFiles.memoryBytes(), files);
+        System.out.printf("%nCompactFileSet holds %.1f%% of the Set, for %d files%n%n", 100.0 * compactBytes / srcBytes,
+                compactFiles.size());
+
+        Path[] probes = new Path[Math.min(files, 200_000)];
+        for (int i = 0; i < probes.length; i++)
+            probes[i] = Paths.get(paths[(int) ((i * 7919L) % files)]);
+
+        Set<File> hashed = set;
+        System.out.printf("%-24s %14s%n", "Operation", "ns/op");
+        time("HashSet.contains", () -> {
+            for (Path p : probes)
+                hashed.contains(p.toFile());
+        }, probes.length);
+        time("contains", () -> {
+            for (Path p : probes)
+                index.contains(p);
+        }, probes.length);
+        time("Set<SrcFile>.contains", () -> {
+            for (Path p : probes)
+                srcSet.contains(new SrcFile(p.toFile(), 0, 0, false));
+        }, probes.length);
+        time("CompactFileSet.get", () -> {
+            for (Path p : probes)
+                compactFiles.get(p);
+        }, probes.length);
+        time("add.duplicate", () -> {
+            for (Path p : probes)
+                index.add(p);
+        }, probes.length);
+        time("remove", () -> {
+            for (Path p : probes)
+                index.remove(p);
+        }, probes.length);
+    }
+
+    private static void print(String name, long bytes, int files) {
+        System.out.printf("%-24s %14.1f %14.1f%n", name, bytes / 1e6, (double) bytes / files);
+    }
+
+    private static void time(String name, Runnable body, int ops) {
+        for (int i = 0; i < 3; i++)
+            body.run();
+        long start = System.nanoTime();
+        body.run();
+        System.out.printf("%-24s %14.1f%n", name, (double) (System.nanoTime() - start) / ops);
+    }
+
+    /**
+     * Gets the heap in use once garbage has been collected
+     */
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static int intArg(String[] args, String name, int fallback) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name))
+                return Integer.parseInt(args[i + 1]);
+        }
+        return fallback;
+    }
+
+}
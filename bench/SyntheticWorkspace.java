@@ -0,0 +1,94 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Generates a throw away workspace of a given shape in a temporary folder for
+ * the benchmarks, laid out the way {@link find.FileSearcher} expects: a number
+ * of projects, each with a src folder holding a number of packages, each
+ * holding a number of small source files. Deleted again, permissions and all,
+ * when closed.
+ */
+
+public class SyntheticWorkspace implements AutoCloseable {
+
+    private final Path root;
+    private final int projects;
+    private final int packages;
+    private final int files;
+
+    /**
+     * Creates a workspace of projects x packages x files source files
+     *
+     * @param projects Number of projects in the workspace
+     * @param packages Number of packages in each project
+     * @param files    Number of source files in each package
+     * @throws IOException if the workspace can not be written
+     */
+    public SyntheticWorkspace(int projects, int packages, int files) throws IOException {
+        this.root = Files.createTempDirectory("wfs-bench");
+        this.projects = projects;
+        this.packages = packages;
+        this.files = files;
+
+        byte[] body = "class A {}\n".getBytes();
+
+        for (int i = 0; i < projects; i++) {
+            for (int j = 0; j < packages; j++) {
+                Path pkg = Files.createDirectories(root.resolve(String.format("project%d/src/pkg%d", i, j)));
+                for (int k = 0; k < files; k++)
+                    Files.write(pkg.resolve(String.format("File%d.java", k)), body);
+            }
+        }
+    }
+
+    /**
+     * Gets the workspace directory
+     *
+     * @return The root of the workspace
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Gets the number of source files in the workspace
+     *
+     * @return The total number of files
+     */
+    public long size() {
+        return (long) projects * packages * files;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d projects x %d packages x %d files (%d files)", projects, packages, files, size());
+    }
+
+    /**
+     * Deletes the workspace, making every file writable first
+     */
+    @Override
+    public void close() throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                f.toFile().setWritable(true);
+                Files.delete(f);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
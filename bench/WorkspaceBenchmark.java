@@ -0,0 +1,164 @@
+package bench;
+
+import attributes.LockBackend;
+import attributes.LockBackends;
+import attributes.PasswordHasher;
+import attributes.SrcFile;
+import find.FileSearcher;
+import find.ScanRules;
+import metrics.AuditLog;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Benchmarks of workspace discovery, bulk locking and unlocking and lock status
+ * checks against a {@link SyntheticWorkspace}, so a regression in
+ * {@link find.FileSearcher} or {@link attributes.SrcFile} shows up as a number.
+ * Runs every benchmark for a number of untimed warmup iterations before the
+ * measured ones, and reports the mean throughput in files per second and the
+ * bytes allocated per file across every thread of the JVM. Locking and unlocking
+ * are measured once for every {@link attributes.LockBackend} that works on the
+ * workspace's file system, after the cost of each backend on a single file.
+ * Locking and unlocking are also measured with the {@link metrics.AuditLog}
+ * off, to show what auditing costs. Last the time to hash one password is measured at a range of
+ * {@link attributes.PasswordHasher} costs, to tune wfs.kdf.iterations by.
+ *
+ * Usage: {@code java bench.WorkspaceBenchmark [--projects N] [--packages N]
+ * [--files N] [--warmup N] [--iterations N]}
+ */
+
+public class WorkspaceBenchmark {
+
+    /**
+     * A single benchmark, run once per iteration
+     */
+    interface Body {
+        void run() throws IOException;
+    }
+
+    private final int warmup;
+    private final int iterations;
+    private final long files;
+
+    private WorkspaceBenchmark(int warmup, int iterations, long files) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.files = files;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int projects = intArg(args, "--projects", 10);
+        int packages = intArg(args, "--packages", 10);
+        int perPackage = intArg(args, "--files", 100);
+
+        try (SyntheticWorkspace ws = new SyntheticWorkspace(projects, packages, perPackage)) {
+            System.out.printf("Workspace: %s%n%n", ws);
+            System.out.printf("%-24s %6s %16s %14s%n", "Benchmark", "Cnt", "Score (files/s)", "Alloc (B/file)");
+
+            WorkspaceBenchmark b = new WorkspaceBenchmark(intArg(args, "--warmup", 3), intArg(args, "--iterations", 5),
+                    ws.size());
+            ScanRules rules = ScanRules.defaults();
+            FileSearcher fs = new FileSearcher(ws.getRoot().toFile(), rules, false);
+
+            b.measure("discovery", () -> new FileSearcher(ws.getRoot().toFile(), rules, false), null);
+            b.measure("lockAll", fs::lockAll, fs::unlockAll);
+            b.measure("lockAll.alreadyLocked", fs::lockAll, null);
+            b.measure("unlockAll", fs::unlockAll, fs::lockAll);
+
+            AuditLog.get().setEnabled(false);
+            fs.unlockAll();
+            b.measure("lockAll.unaudited", fs::lockAll, fs::unlockAll);
+            b.measure("unlockAll.unaudited", fs::unlockAll, fs::lockAll);
+            AuditLog.get().setEnabled(true);
+            b.measure("status", () -> fs.status(false), null);
+
+            LockBackend original = SrcFile.getBackend();
+            for (LockBackends.Cost c : LockBackends.measure(ws.getRoot(), 1000)) {
+                if (!c.isCorrect())
+                    continue;
+                SrcFile.setBackend(c.getBackend());
+                fs.unlockAll();
+                b.measure("lockAll." + c.getBackend().name(), fs::lockAll, fs::unlockAll);
+                b.measure("unlockAll." + c.getBackend().name(), fs::unlockAll, fs::lockAll);
+            }
+            SrcFile.setBackend(original);
+
+            fs.unlockAll();
+            b.measure("SrcFile.isLocked", () -> {
+                for (SrcFile f : fs.getSrcFiles())
+                    f.isLocked();
+            }, null);
+
+            fs.unlockAll();
+
+            System.out.println();
+            for (LockBackends.Cost c : LockBackends.measure(ws.getRoot(), 1000))
+                System.out.println(c);
+
+            System.out.println();
+            System.out.printf("%-24s %16s%n", "KDF iterations", "ms per password");
+            for (int kdf : new int[] { 50_000, 100_000, PasswordHasher.DEFAULT_ITERATIONS, 600_000 })
+                System.out.printf("%-24d %16.1f%n", kdf, PasswordHasher.measure(kdf, 5) / 1e6);
+        }
+    }
+
+    /**
+     * Runs a benchmark and prints its result
+     *
+     * @param name  Name of the benchmark
+     * @param body  The timed work, run once per iteration
+     * @param setup Untimed work run before every iteration, or {@code null}
+     * @throws IOException if the benchmark fails
+     */
+    private void measure(String name, Body body, Body setup) throws IOException {
+        for (int i = 0; i < warmup; i++) {
+            if (setup != null)
+                setup.run();
+            body.run();
+        }
+
+        long nanos = 0;
+        long bytes = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            if (setup != null)
+                setup.run();
+
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            body.run();
+            nanos += System.nanoTime() - start;
+            bytes += allocatedBytes() - allocated;
+        }
+
+        double perSecond = files * iterations / (nanos / 1e9);
+        double perFile = (double) bytes / (files * iterations);
+        System.out.printf("%-24s %6d %16.0f %14.1f%n", name, iterations, perSecond, perFile);
+    }
+
+    /**
+     * Gets the number of bytes allocated so far by every live thread, where the
+     * JVM supports measuring it
+     *
+     * @return The bytes allocated, or 0 if it can not be measured
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return 0;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        return Arrays.stream(threads.getThreadAllocatedBytes(threads.getAllThreadIds())).filter(b -> b > 0).sum();
+    }
+
+    private static int intArg(String[] args, String name, int fallback) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name))
+                return Integer.parseInt(args[i + 1]);
+        }
+        return fallback;
+    }
+
+}
@@ -0,0 +1,259 @@
+package find;
+
+import attributes.SrcFile;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Runs a per-file operation, such as {@link attributes.SrcFile#lockFile()}, over
+ * many source files at once. Each call on a network file system is a blocking
+ * round trip, so instead of one file after another the calls are spread over
+ * an executor, either a bounded pool of platform threads or one virtual thread
+ * per file where the running JVM supports them. In both cases no more than the
+ * configured number of calls are in flight at a time, which also keeps the
+ * caller from queueing up every file of a large workspace at once. Calls can
+ * also be paced by a {@link RateLimiter}, which every share of the executor
+ * goes through as well, so the rate holds for every operation together.
+ */
+
+public class BulkExecutor implements AutoCloseable {
+
+    private static BulkExecutor shared;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    // Paces the calls, null if they are not paced
+    private final RateLimiter limiter;
+
+    // Whether closing this shuts the executor down, false for shares
+    private final boolean owner;
+
+    /**
+     * Constructs a {@code BulkExecutor} that runs on the given executor
+     *
+     * @param executor    The executor the per-file calls are run on
+     * @param parallelism The most per-file calls that may be in flight at once
+     */
+    public BulkExecutor(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, null, true);
+    }
+
+    private BulkExecutor(ExecutorService executor, int parallelism, RateLimiter limiter, boolean owner) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.limiter = limiter;
+        this.owner = owner;
+    }
+
+    /**
+     * Creates a {@code BulkExecutor} backed by a fixed pool of daemon platform
+     * threads, whose calls are paced if the wfs.rate.limit system property is set
+     *
+     * @param parallelism The number of threads, and so calls in flight
+     * @return The new {@code BulkExecutor}
+     * @see RateLimiter#fromProperties()
+     */
+    public static BulkExecutor bounded(int parallelism) {
+        return bounded(parallelism, RateLimiter.fromProperties());
+    }
+
+    /**
+     * Creates a {@code BulkExecutor} backed by a fixed pool of daemon platform
+     * threads, whose calls are paced by a {@link RateLimiter}
+     *
+     * @param parallelism The number of threads, and so calls in flight
+     * @param limiter     Paces the calls, or {@code null} to not pace them
+     * @return The new {@code BulkExecutor}
+     */
+    public static BulkExecutor bounded(int parallelism, RateLimiter limiter) {
+        return new BulkExecutor(Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "bulk-worker");
+            t.setDaemon(true);
+            return t;
+        }), parallelism, limiter, true);
+    }
+
+    /**
+     * Creates a {@code BulkExecutor} that starts one virtual thread per file with
+     * at most parallelism of them running at once. Falls back to
+     * {@link #bounded(int)} on JVMs without virtual threads.
+     *
+     * @param parallelism The most calls in flight at once
+     * @return The new {@code BulkExecutor}
+     */
+    public static BulkExecutor virtual(int parallelism) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new BulkExecutor((ExecutorService) factory.invoke(null), parallelism);
+        } catch (ReflectiveOperationException e) {
+            return bounded(parallelism);
+        }
+    }
+
+    /**
+     * Gets the {@code BulkExecutor} shared by every {@link FileSearcher} that is
+     * not given one, sized for I/O bound work at twice the number of cores
+     *
+     * @return The shared {@code BulkExecutor}
+     */
+    public static synchronized BulkExecutor shared() {
+        if (shared == null)
+            shared = bounded(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        return shared;
+    }
+
+    /**
+     * Gets the most per-file calls this executor runs at once
+     *
+     * @return The parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Gets a {@code BulkExecutor} that runs on the same threads as this one but
+     * with its own, usually smaller, limit of calls in flight. Several operations
+     * each given a share of one executor are served in turn by its threads, so
+     * no single operation can fill the queue and hold the others back. Closing a
+     * share does not shut down the threads.
+     *
+     * @param parallelism The most calls the share may have in flight at once
+     * @return The share of this executor
+     */
+    public BulkExecutor share(int parallelism) {
+        return new BulkExecutor(executor, parallelism, limiter, false);
+    }
+
+    /**
+     * Gets the limiter pacing the calls
+     *
+     * @return The {@link RateLimiter}, or {@code null} if calls are not paced
+     */
+    public RateLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Runs the operation on every file and waits for all of them to finish
+     *
+     * @param files The files to run the operation on
+     * @param op    The operation, returning {@code false} if it failed on a file
+     * @return The result, listing every file the operation failed on
+     */
+    public BulkResult run(Iterable<SrcFile> files, Predicate<SrcFile> op) {
+        return run(files, f -> false, op);
+    }
+
+    /**
+     * Runs the operation on every file that is not skipped and waits for all of
+     * them to finish. The skip check is made on the executor's threads along with
+     * the operation, so it may read the file's current state from disk, such as
+     * through {@link SrcFile#refreshState()}, without holding up the others.
+     *
+     * @param files The files to run the operation on
+     * @param skip  Returns {@code true} for files that are already in the wanted
+     *              state and need no write
+     * @param op    The operation, returning {@code false} if it failed on a file
+     * @return The result, listing every file the operation failed on and how many
+     *         were skipped
+     */
+    public BulkResult run(Iterable<SrcFile> files, Predicate<SrcFile> skip, Predicate<SrcFile> op) {
+        BulkResult result = new BulkResult();
+        long start = System.nanoTime();
+
+        forEach(files, skip, result::skipped, f -> {
+            boolean done;
+            try {
+                done = op.test(f);
+            } catch (RuntimeException e) {
+                done = false;
+            }
+
+            if (done)
+                result.succeeded(f);
+            else
+                result.failed(f);
+        });
+
+        result.finished(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Hands every file to the action, running at most parallelism of them at
+     * once, and waits for all of them to finish
+     *
+     * @param files  The files to run the action on
+     * @param action The action, which must not throw
+     */
+    public void forEach(Iterable<SrcFile> files, Consumer<SrcFile> action) {
+        forEach(files, f -> false, f -> {
+        }, action);
+    }
+
+    private void forEach(Iterable<SrcFile> files, Predicate<SrcFile> skip, Consumer<SrcFile> skipped,
+            Consumer<SrcFile> action) {
+        Semaphore permits = new Semaphore(parallelism);
+
+        try {
+            for (SrcFile f : files) {
+                if (limiter != null)
+                    limiter.acquire();
+
+                Runnable task = () -> {
+                    long start = System.nanoTime();
+                    try {
+                        if (skip.test(f))
+                            skipped.accept(f);
+                        else
+                            action.accept(f);
+                    } finally {
+                        if (limiter != null)
+                            limiter.record(System.nanoTime() - start);
+                        permits.release();
+                    }
+                };
+
+                permits.acquire();
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // the executor was shut down, the task gives its permit back
+                    // once it has run here instead
+                    task.run();
+                }
+            }
+
+            // every call has finished once all the permits are back
+            permits.acquire(parallelism);
+            permits.release(parallelism);
+        } catch (InterruptedException e) {
+            // no more files are handed out, but the calls already running are
+            // waited for so none of them is still changing a file on return
+            permits.acquireUninterruptibly(parallelism);
+            permits.release(parallelism);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Shuts down the underlying executor, unless this is a share of another
+     * {@code BulkExecutor}
+     */
+    @Override
+    public void close() {
+        if (owner)
+            executor.shutdown();
+    }
+
+}
@@ -0,0 +1,126 @@
+package find;
+
+import attributes.SrcFile;
+import metrics.OperationMetrics;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Result of a bulk operation over the source files of a workspace, such as
+ * {@link FileSearcher#lockAll()} or {@link FileSearcher#unlockAll()}. Every
+ * file the operation failed on is collected here instead of being printed, so
+ * the caller can decide how to report them, along with how many files were
+ * skipped because they were already in the wanted state. Folders locked or
+ * unlocked along with the files in subtree mode are kept apart from the files,
+ * as they are retried and put back as folders. Safe to be filled in from many
+ * threads at once.
+ */
+
+public class BulkResult {
+
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final Queue<SrcFile> failures = new ConcurrentLinkedQueue<>();
+    private final Queue<Path> folderFailures = new ConcurrentLinkedQueue<>();
+    private long elapsedNanos;
+
+    void succeeded(SrcFile f) {
+        succeeded.increment();
+    }
+
+    void skipped(SrcFile f) {
+        skipped.increment();
+        OperationMetrics.get().skipped();
+    }
+
+    void failed(SrcFile f) {
+        failures.add(f);
+        OperationMetrics.get().failed();
+    }
+
+    void folderFailed(Path dir) {
+        folderFailures.add(dir);
+        OperationMetrics.get().failed();
+    }
+
+    void finished(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Checks if the operation succeeded on every file and folder
+     *
+     * @return {@code true} if and only if there were no failures
+     */
+    public boolean isSuccess() {
+        return failures.isEmpty() && folderFailures.isEmpty();
+    }
+
+    /**
+     * Gets the number of files the operation succeeded on
+     *
+     * @return The number of successful files
+     */
+    public long getSucceeded() {
+        return succeeded.sum();
+    }
+
+    /**
+     * Gets the number of files that were already in the wanted state, and so were
+     * not written to at all
+     *
+     * @return The number of skipped files
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * Gets every file the operation failed on
+     *
+     * @return A {@code List} of the failed files
+     */
+    public List<SrcFile> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * Gets every folder the operation failed to lock or unlock
+     *
+     * @return A {@code List} of the failed folders
+     */
+    public List<Path> getFolderFailures() {
+        return new ArrayList<>(folderFailures);
+    }
+
+    /**
+     * Gets the number of files the operation was run on
+     *
+     * @return The number of files
+     */
+    public long getTotal() {
+        return succeeded.sum() + skipped.sum() + failures.size();
+    }
+
+    /**
+     * Gets the wall clock time the operation took
+     *
+     * @return The elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        String folders = folderFailures.isEmpty() ? "" : String.format(", %d folders failed", folderFailures.size());
+        return String.format("%d succeeded, %d skipped, %d failed%s in %d ms", getSucceeded(), getSkipped(),
+                failures.size(), folders, elapsedNanos / 1_000_000);
+    }
+
+}
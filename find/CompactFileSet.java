@@ -0,0 +1,228 @@
+package find;
+
+import attributes.SrcFile;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact form of the source files of a workspace, which {@link FileSearcher}
+ * keeps them in. Rather than one {@code SrcFile} with its own {@code File} and
+ * full path per file, the paths are held in a {@link FileIndex}, where every
+ * folder is stored once and each file is just its name, and what was last seen
+ * of each file, its modified time, size, lock state and the change time the
+ * lock state was read at, sits in plain arrays under its id in the index. The
+ * same file added twice is only held once. {@code SrcFile} objects are only
+ * created for as long as an operation needs them, and what the operation
+ * learned about a file is kept with {@link #update(SrcFile)}.
+ *
+ * Every method holds the set's lock, as live mode adds and removes files from
+ * its own thread. Iterating only holds it for each step, so files added or
+ * removed while an iteration runs may or may not be reached.
+ */
+
+public class CompactFileSet implements Iterable<SrcFile> {
+
+    private final FileIndex index = new FileIndex();
+
+    // Snapshot of every file, by its id in the index
+    private long[] modified = new long[1024];
+    private long[] sizes = new long[1024];
+    private long[] stamps = new long[1024];
+    private final BitSet locked = new BitSet();
+
+    /**
+     * Adds a source file, or replaces what is known of the file if it is already
+     * in the set
+     *
+     * @param f The file to add
+     * @return {@code true} if the file was not already in the set
+     */
+    public synchronized boolean add(SrcFile f) {
+        int size = index.size();
+        int id = index.add(f.getFile().toPath());
+        if (id >= modified.length) {
+            int capacity = Math.max(modified.length * 2, id + 1);
+            modified = Arrays.copyOf(modified, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            stamps = Arrays.copyOf(stamps, capacity);
+        }
+        keep(id, f);
+        return index.size() > size;
+    }
+
+    /**
+     * Adds every source file of a collection, such as the files found in one
+     * folder, taking the lock once for all of them
+     *
+     * @param files The files to add
+     */
+    public synchronized void addAll(Collection<SrcFile> files) {
+        for (SrcFile f : files)
+            add(f);
+    }
+
+    /**
+     * Keeps what was last seen of a file that is in the set, after it was
+     * checked, locked or unlocked. A file that is not in the set is left out.
+     *
+     * @param f The file
+     */
+    public synchronized void update(SrcFile f) {
+        int id = index.indexOf(f.getFile().toPath());
+        if (id >= 0)
+            keep(id, f);
+    }
+
+    private void keep(int id, SrcFile f) {
+        modified[id] = f.getLastModified();
+        sizes[id] = f.getSize();
+        stamps[id] = f.getCheckedStamp();
+        locked.set(id, f.wasLocked());
+    }
+
+    /**
+     * Gets a file of the set by its path
+     *
+     * @param file The file's path
+     * @return A new {@code SrcFile} for the file, or {@code null} if it is not in
+     *         the set
+     */
+    public synchronized SrcFile get(Path file) {
+        int id = index.indexOf(file);
+        return id < 0 ? null : view(id);
+    }
+
+    /**
+     * Checks if a file is in the set
+     *
+     * @param file The file's path
+     * @return {@code true} if the file is in the set
+     */
+    public synchronized boolean contains(Path file) {
+        return index.contains(file);
+    }
+
+    /**
+     * Removes a file from the set
+     *
+     * @param file The file's path
+     * @return {@code true} if the file was in the set
+     */
+    public synchronized boolean remove(Path file) {
+        int id = index.indexOf(file);
+        if (id < 0)
+            return false;
+        index.remove(file);
+        locked.clear(id);
+        return true;
+    }
+
+    /**
+     * Removes every file under a folder
+     *
+     * @param dir The folder's path
+     * @return The number of files removed
+     * @see FileIndex#removeUnder(Path)
+     */
+    public synchronized int removeUnder(Path dir) {
+        BitSet removed = index.removeUnder(dir);
+        locked.andNot(removed);
+        return removed.cardinality();
+    }
+
+    /**
+     * Gets the number of files in the set
+     *
+     * @return The number of files
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Checks if there are files in the set and every one of them was last seen
+     * locked
+     *
+     * @return {@code true} if every file is locked
+     */
+    public synchronized boolean allLocked() {
+        return index.size() > 0 && locked.cardinality() == index.size();
+    }
+
+    /**
+     * Gets every folder holding a file of the set, each worked out once from the
+     * id of its entry in the index rather than once per file
+     *
+     * @return The normalized absolute paths of the folders
+     */
+    public synchronized Set<Path> folders() {
+        BitSet parents = new BitSet();
+        for (int id = index.next(0); id >= 0; id = index.next(id + 1)) {
+            int parent = index.parent(id);
+            if (parent >= 0)
+                parents.set(parent);
+        }
+
+        Set<Path> folders = new HashSet<>();
+        for (int p = parents.nextSetBit(0); p >= 0; p = parents.nextSetBit(p + 1))
+            folders.add(Paths.get(index.path(p)));
+        return folders;
+    }
+
+    /**
+     * Gets how many bytes the files take up in memory
+     *
+     * @return The size of the index and the snapshots in bytes
+     * @see FileIndex#memoryBytes()
+     */
+    public synchronized long memoryBytes() {
+        return index.memoryBytes() + 8L * (modified.length + sizes.length + stamps.length) + locked.size() / 8;
+    }
+
+    /**
+     * Iterates over the files in the order they were first added, creating each
+     * {@code SrcFile} as it is reached. The iterator can not remove files.
+     */
+    @Override
+    public Iterator<SrcFile> iterator() {
+        return new Iterator<SrcFile>() {
+            private int id = -1;
+            private SrcFile next = advance();
+
+            private SrcFile advance() {
+                synchronized (CompactFileSet.this) {
+                    id = index.next(id + 1);
+                    return id < 0 ? null : view(id);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public SrcFile next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                SrcFile f = next;
+                next = advance();
+                return f;
+            }
+        };
+    }
+
+    private SrcFile view(int id) {
+        return new SrcFile(new File(index.path(id)), modified[id], sizes[id], locked.get(id), stamps[id]);
+    }
+
+}
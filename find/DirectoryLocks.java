@@ -0,0 +1,99 @@
+package find;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Locks whole folders by taking away their write permission, so no file can be
+ * created in them, deleted from them or renamed within them. Checking a single
+ * folder then stands in for checking every file in it, which is what lets
+ * {@link FileSearcher} lock, unlock and check a workspace in subtree mode at the
+ * cost of its folders rather than its files. Only file systems with POSIX
+ * permissions enforce this, elsewhere every folder counts as unlocked and is
+ * left alone.
+ */
+
+class DirectoryLocks {
+
+    private static final Set<PosixFilePermission> WRITE = EnumSet.of(PosixFilePermission.OWNER_WRITE,
+            PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE);
+
+    private DirectoryLocks() {
+    }
+
+    /**
+     * Gets every folder holding a source file, along with every folder in the
+     * index, which includes the empty ones files could be created in
+     *
+     * @param parents The folders holding source files
+     * @param index   The workspace's index
+     * @return The folders
+     * @see CompactFileSet#folders()
+     */
+    static Set<Path> folders(Collection<Path> parents, WorkspaceIndex index) {
+        Set<Path> folders = new HashSet<>();
+        for (Path d : index.directories())
+            folders.add(d.toAbsolutePath().normalize());
+        folders.addAll(parents);
+        return folders;
+    }
+
+    /**
+     * Checks if a folder is locked, which is when its owner can not write to it
+     *
+     * @param dir The folder
+     * @return {@code true} if the folder is locked
+     */
+    static boolean isLocked(Path dir) {
+        try {
+            return !Files.getPosixFilePermissions(dir).contains(PosixFilePermission.OWNER_WRITE);
+        } catch (UnsupportedOperationException | IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Takes away every write permission of a folder, keeping the others
+     *
+     * @param dir The folder
+     * @return {@code true} if the folder was locked
+     */
+    static boolean lock(Path dir) {
+        try {
+            Set<PosixFilePermission> perms = Files.getPosixFilePermissions(dir);
+            if (perms.removeAll(WRITE))
+                Files.setPosixFilePermissions(dir, perms);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gives the owner of a folder write permission back
+     *
+     * @param dir The folder
+     * @return {@code true} if the folder was unlocked
+     */
+    static boolean unlock(Path dir) {
+        try {
+            Set<PosixFilePermission> perms = Files.getPosixFilePermissions(dir);
+            if (perms.add(PosixFilePermission.OWNER_WRITE))
+                Files.setPosixFilePermissions(dir, perms);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,346 @@
+package find;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Set of files keyed by their normalized absolute path, built to hold millions
+ * of files in a fraction of the memory of a {@code HashSet} of {@code File}s.
+ * Every path is split into its names, and each distinct name under a distinct
+ * parent is stored once as an entry: the id of its parent entry and where its
+ * UTF-8 bytes sit in one shared byte arena. The entries are found through an
+ * open addressing table of their ids, hashed from the parent id and the name,
+ * so a folder holding thousands of files costs one entry and each file only its
+ * own name. Adding, finding and removing a file take one table probe per name
+ * in its path, however many files there are, and the same path given twice,
+ * however it is spelled, is only held once.
+ *
+ * A removed file is only unmarked, its names stay in the arena so the ids of
+ * the other files never change. Not safe for use by many threads at once.
+ */
+
+public class FileIndex {
+
+    private static final int NONE = -1;
+
+    // A separator is always one byte in UTF-8
+    private static final byte SEPARATOR = (byte) File.separatorChar;
+
+    // UTF-8 bytes of every name, back to back
+    private byte[] arena = new byte[4096];
+    private int arenaSize;
+
+    // Per entry, side by side so a probe reads one cache line: parent entry,
+    // offset and length of its name, and its hash
+    private static final int PARENT = 0;
+    private static final int OFFSET = 1;
+    private static final int LENGTH = 2;
+    private static final int HASH = 3;
+    private static final int STRIDE = 4;
+    private int[] meta = new int[256 * STRIDE];
+    private int entries;
+
+    // Entry id + 1 of every entry, 0 for an empty slot, kept at most half full
+    private int[] table = new int[512];
+
+    // Entries that are files in the set rather than just folders on the way
+    private final BitSet members = new BitSet();
+    private int size;
+
+    /**
+     * Adds a file, or finds it if it is already in the set
+     *
+     * @param file The file's path
+     * @return The id of the file, which stays the same for as long as the
+     *         {@code FileIndex} exists
+     */
+    public int add(Path file) {
+        byte[] path = bytes(file);
+        int id = NONE;
+        for (int start = 0, end; start <= path.length; start = end + 1) {
+            end = end(path, start);
+            id = intern(id, path, start, end - start);
+        }
+
+        if (!members.get(id)) {
+            members.set(id);
+            size++;
+        }
+        return id;
+    }
+
+    /**
+     * Finds a file in the set
+     *
+     * @param file The file's path
+     * @return The id of the file, or -1 if it is not in the set
+     */
+    public int indexOf(Path file) {
+        int id = entryOf(file);
+        return id != NONE && members.get(id) ? id : NONE;
+    }
+
+    /**
+     * Checks if a file is in the set
+     *
+     * @param file The file's path
+     * @return {@code true} if it is in the set
+     */
+    public boolean contains(Path file) {
+        return indexOf(file) != NONE;
+    }
+
+    /**
+     * Removes a file from the set
+     *
+     * @param file The file's path
+     * @return {@code true} if it was in the set
+     */
+    public boolean remove(Path file) {
+        int id = indexOf(file);
+        if (id == NONE)
+            return false;
+        members.clear(id);
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes every file under a folder, going up from each file through the ids
+     * of its folders rather than comparing paths
+     *
+     * @param dir The folder's path
+     * @return The ids of the files that were removed
+     */
+    public BitSet removeUnder(Path dir) {
+        BitSet removed = new BitSet();
+        int folder = entryOf(dir);
+        if (folder == NONE)
+            return removed;
+
+        for (int id = members.nextSetBit(0); id >= 0; id = members.nextSetBit(id + 1)) {
+            for (int e = meta[id * STRIDE + PARENT]; e != NONE; e = meta[e * STRIDE + PARENT]) {
+                if (e == folder) {
+                    removed.set(id);
+                    break;
+                }
+            }
+        }
+
+        members.andNot(removed);
+        size -= removed.cardinality();
+        return removed;
+    }
+
+    /**
+     * Checks if an id is that of a file still in the set
+     *
+     * @param id The file's id
+     * @return {@code true} if the file is in the set
+     */
+    public boolean contains(int id) {
+        return id >= 0 && members.get(id);
+    }
+
+    /**
+     * Gets the first id of a file in the set at or after the given id, to
+     * iterate over the set in the order files were first added
+     *
+     * @param from The id to start at
+     * @return The next id, or -1 if there is none
+     */
+    public int next(int from) {
+        return members.nextSetBit(from);
+    }
+
+    /**
+     * Gets the path of a file in the set
+     *
+     * @param id The file's id
+     * @return The file's normalized absolute path
+     */
+    public String path(int id) {
+        int depth = 0;
+        int[] chain = new int[16];
+        for (int e = id; e != NONE; e = meta[e * STRIDE + PARENT]) {
+            if (depth == chain.length)
+                chain = Arrays.copyOf(chain, depth * 2);
+            chain[depth++] = e;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = depth - 1; i >= 0; i--) {
+            int e = chain[i];
+            if (i < depth - 1)
+                sb.append(File.separatorChar);
+            sb.append(new String(arena, meta[e * STRIDE + OFFSET], meta[e * STRIDE + LENGTH], StandardCharsets.UTF_8));
+        }
+
+        // a path that is only the root keeps its separator
+        if (depth == 1)
+            sb.append(File.separatorChar);
+        return sb.toString();
+    }
+
+    /**
+     * Gets the id of the folder a file is in, the same for every file in that
+     * folder
+     *
+     * @param id The file's id
+     * @return The id of its parent folder, or -1 for a root
+     */
+    public int parent(int id) {
+        return meta[id * STRIDE + PARENT];
+    }
+
+    /**
+     * Gets the number of files in the set
+     *
+     * @return The number of files
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of distinct names stored, for every file and every folder
+     * on the way to them
+     *
+     * @return The number of entries
+     */
+    public int entries() {
+        return entries;
+    }
+
+    /**
+     * Gets how many bytes the index holds on to, not counting the few object
+     * headers
+     *
+     * @return The size of every array of the index in bytes
+     */
+    public long memoryBytes() {
+        return arena.length + 4L * (meta.length + table.length)
+                + members.size() / 8;
+    }
+
+    /**
+     * Finds the entry for a path, whether it is a file in the set or a folder on
+     * the way to one
+     */
+    private int entryOf(Path file) {
+        byte[] path = bytes(file);
+        int id = NONE;
+        for (int start = 0, end; start <= path.length; start = end + 1) {
+            end = end(path, start);
+            id = find(id, path, start, end - start);
+            if (id == NONE)
+                return NONE;
+        }
+        return id;
+    }
+
+    /**
+     * Gets the UTF-8 bytes of the normalized absolute form of a path, to be split
+     * at every separator, so the root / becomes an empty first name
+     */
+    private static byte[] bytes(Path file) {
+        String path = file.toAbsolutePath().normalize().toString();
+        // only a bare root ends with a separator, which path() puts back
+        if (path.endsWith(File.separator))
+            path = path.substring(0, path.length() - 1);
+        return path.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets where the name starting at start ends, at the next separator or the
+     * end of the path
+     */
+    private static int end(byte[] path, int start) {
+        int end = start;
+        while (end < path.length && path[end] != SEPARATOR)
+            end++;
+        return end;
+    }
+
+    /**
+     * Finds the entry for a name under a parent
+     */
+    private int find(int parent, byte[] name, int off, int len) {
+        int hash = hash(parent, name, off, len);
+        int mask = table.length - 1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            int e = table[slot] - 1;
+            if (e == NONE)
+                return NONE;
+            if (meta[e * STRIDE + HASH] == hash && meta[e * STRIDE + PARENT] == parent && matches(e, name, off, len))
+                return e;
+        }
+    }
+
+    /**
+     * Finds the entry for a name under a parent, adding it if there is none
+     */
+    private int intern(int parent, byte[] name, int off, int len) {
+        int hash = hash(parent, name, off, len);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (;; slot = (slot + 1) & mask) {
+            int e = table[slot] - 1;
+            if (e == NONE)
+                break;
+            if (meta[e * STRIDE + HASH] == hash && meta[e * STRIDE + PARENT] == parent && matches(e, name, off, len))
+                return e;
+        }
+
+        if (entries * STRIDE == meta.length)
+            meta = Arrays.copyOf(meta, meta.length * 2);
+        if (arenaSize + len > arena.length)
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + len));
+
+        int e = entries++;
+        System.arraycopy(name, off, arena, arenaSize, len);
+        int m = e * STRIDE;
+        meta[m + PARENT] = parent;
+        meta[m + OFFSET] = arenaSize;
+        meta[m + LENGTH] = len;
+        meta[m + HASH] = hash;
+        arenaSize += len;
+        table[slot] = e + 1;
+
+        if (entries * 2 > table.length)
+            rehash(table.length * 2);
+        return e;
+    }
+
+    private boolean matches(int e, byte[] name, int off, int len) {
+        int offset = meta[e * STRIDE + OFFSET];
+        return meta[e * STRIDE + LENGTH] == len && Arrays.equals(arena, offset, offset + len, name, off, off + len);
+    }
+
+    private void rehash(int capacity) {
+        int[] grown = new int[capacity];
+        int mask = capacity - 1;
+        for (int e = 0; e < entries; e++) {
+            int slot = meta[e * STRIDE + HASH] & mask;
+            while (grown[slot] != 0)
+                slot = (slot + 1) & mask;
+            grown[slot] = e + 1;
+        }
+        table = grown;
+    }
+
+    private static int hash(int parent, byte[] name, int off, int len) {
+        int h = parent * 0x9E3779B9;
+        for (int i = off; i < off + len; i++)
+            h = 31 * h + name[i];
+        // spread the bits so linear probing does not cluster
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+}
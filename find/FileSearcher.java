@@ -1,12 +1,21 @@
 package find;
 
 import attributes.SrcFile;
+import metrics.OperationMetrics;
 
 import java.io.File;
-import java.util.Arrays;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 /**
  * Object in which it uses a file directory path to find all source files. Has
@@ -22,264 +31,838 @@ public class FileSearcher {
     private File dir;
 
     /**
-     * {@code HashSet} of src files which are inputed as an object of
-     * {@code SrcFile}
+     * The source files, kept compact and found, added and removed by their
+     * normalized absolute path without a scan
      */
-    HashSet<SrcFile> srcFiles = new HashSet<>();
+    private final CompactFileSet srcFiles;
+
+    // Index built by the last scan and whether it is kept on disk
+    private WorkspaceIndex index;
+    private boolean indexed;
+
+    private ScanRules rules;
+
+    // Ledger of the files each bulk operation changed, null unless indexed
+    private LockLedger ledger;
+
+    // Whether the workspace was last locked or unlocked as a whole
+    private volatile boolean locked;
+
+    // Whether the content of files is recorded when they are locked
+    private volatile boolean verifying = Boolean.getBoolean("wfs.verify");
+
+    // Digests of the content of every file, loaded when first needed
+    private IntegrityVerifier integrity;
+
+    // Whether folders are locked along with the files in them
+    private volatile boolean subtreeLocking = Boolean.getBoolean("wfs.subtree.locking");
+
+    // Watcher keeping the source files up to date, null unless live mode is on
+    private WorkspaceWatcher watcher;
+
+    // When a file was last created, changed or deleted, as seen in live mode
+    private volatile long lastEdit = System.currentTimeMillis();
+
+    // Bumped on every change to the files, to tell if the last status is stale
+    private final AtomicLong generation = new AtomicLong();
+    private StatusReport lastStatus;
+    private long lastStatusGeneration;
 
     /**
      * Constructs a FileSearcher object in which it sets the directory to the
-     * {@code File} Object that is passed through
+     * {@code File} Object that is passed through and finds every source file under
+     * it using the rules in rules.dat, or the default rules if there is none. The
+     * workspace's index is used and kept up to date so only folders that changed
+     * since the last run are listed again.
      * 
      * @param dir The File directory to be set to dir variable and to be searched
-     * @see java.util.AbstractCollection#addAll(java.util.Collection)
-     * @see #findFiles()
+     * @throws IOException if dir is not a directory, the rules file exists but can
+     *                     not be read, or the index can not be written
+     * @see find.ScanRules#load()
+     * @see find.WorkspaceIndex
+     */
+    public FileSearcher(File dir) throws IOException {
+        this(dir, ScanRules.load(), true);
+    }
+
+    /**
+     * Constructs a FileSearcher object in which it sets the directory to the
+     * {@code File} Object that is passed through and finds every source file under
+     * it in parallel through a {@link WorkspaceWalker}
+     * 
+     * @param dir     The File directory to be set to dir variable and to be
+     *                searched
+     * @param rules   The rules deciding which files and folders are scanned
+     * @param indexed If the workspace's on disk index should be read and updated
+     * @throws IOException if dir is not a directory, or the index can not be
+     *                     written
+     * @see find.WorkspaceWalker#walk()
      */
-    public FileSearcher(File dir) {
+    public FileSearcher(File dir, ScanRules rules, boolean indexed) throws IOException {
+        if (!dir.isDirectory())
+            throw new IOException("Not a directory: " + dir);
+
         this.dir = dir;
-        srcFiles.addAll(findFiles());
-    }
-
-    /**
-     * Finds all files under a directory. It provides provisions if there are
-     * mutiple projects in the workspace, one project by using the
-     * {@link #findSingular()} method, if the project does not
-     * have any modules or packages by using {@link #checkPackages(File[])}, if
-     * there are packages, in which case it gets every source code file under each
-     * package, or if there are no files with in the project by using
-     * {@link #checkPackages(File[])}. Gets all of the projects or files, depending
-     * on the structure of the workspace by using the {@link java.io.File#list()}.
-     * Also provides provisionsfor if the directory is a workspace used by the IDE
-     * Eclipse as they have .metadata folders, it removes it from the list to search
-     * and it also ignores any non source file or package folder and provides a
-     * final provision to make sure it doesn't make this project read only. Once all
-     * src files have been found it creates a new {@code SrcFile} Object and is
-     * added by the {@link #addFilesWithPackages(File[])} method if they have
-     * packages, if not they are added by the {@link #addFiles(File[])} method to
-     * the HashSet that is to be returned. Private as it is invoked when creating a
-     * new instance of this object and does not need to be accessed by other classes
-     * or the client.
+        this.rules = rules;
+        this.indexed = indexed;
+
+        long start = System.nanoTime();
+        Path root = dir.toPath();
+        WorkspaceWalker walker = new WorkspaceWalker(root, rules,
+                indexed ? WorkspaceIndex.load(root, rules) : new WorkspaceIndex(root, rules));
+        this.srcFiles = walker.walk();
+        this.index = walker.index();
+        this.locked = srcFiles.allLocked();
+
+        if (indexed) {
+            this.index.save();
+            this.ledger = LockLedger.open(root);
+            // the ledger knows what the workspace was last put in, whatever
+            // happened to its files since
+            LockLedger.Entry last = ledger.last();
+            if (last != null)
+                this.locked = last.isLock();
+        }
+
+        OperationMetrics.get().scanned(System.nanoTime() - start);
+        OperationMetrics.get().dump();
+    }
+
+    /**
+     * Turns on live mode, in which a {@link WorkspaceWatcher} listens for files
+     * being created or deleted under the workspace's source folders on a
+     * background thread and keeps the set of source files up to date without a
+     * rescan. Does nothing if live mode is already on.
      * 
-     * @return {@code HashSet} of {@code SrcFile} Objects which is the source
-     *         code of the project(s)
-     * @see java.util.Collections#binarySearch(java.util.List, Object)
+     * @param autoLock If files created while the workspace is locked should be
+     *                 locked as soon as they appear
+     * @throws IOException if the folders can not be registered with the
+     *                     {@code WatchService}
+     * @see java.nio.file.WatchService
+     */
+    public synchronized void startWatching(boolean autoLock) throws IOException {
+        if (watcher != null)
+            return;
+
+        watcher = new WorkspaceWatcher(this, dir.toPath(), rules, autoLock);
+        watcher.start(index.directories());
+    }
+
+    /**
+     * Turns off live mode, if it is on, and stops the background thread
      */
+    public synchronized void stopWatching() {
+        if (watcher == null)
+            return;
 
-    private HashSet<SrcFile> findFiles() {
+        watcher.close();
+        watcher = null;
+    }
+
+    /**
+     * Gets the directory of the workspace
+     * 
+     * @return The workspace directory
+     */
+    public Path getDirectory() {
+        return dir.toPath();
+    }
 
-        HashSet<SrcFile> files = new HashSet<>();
+    /**
+     * Gets every source file currently known in the workspace
+     * 
+     * @return A read only view of the source files
+     */
+    public Iterable<SrcFile> getSrcFiles() {
+        return srcFiles;
+    }
 
-        LinkedList<String> projects = new LinkedList<>();
-        projects.addAll(Arrays.asList(dir.list()));
+    /**
+     * Gets the number of source files currently known in the workspace
+     * 
+     * @return The number of source files
+     */
+    public int size() {
+        return srcFiles.size();
+    }
 
-        if (projects.getFirst().contains("metadata"))
-            projects.removeFirst();
+    /**
+     * Checks if a file is one of the workspace's source files, found by its path
+     * rather than a scan
+     * 
+     * @param file The file
+     * @return {@code true} if the file is a source file of the workspace
+     */
+    public boolean contains(Path file) {
+        return srcFiles.contains(file);
+    }
 
-        if (Collections.frequency(projects, "src") == 1) {
-            files.addAll(findSingular());
-            return files;
-        }
+    /**
+     * Checks if the workspace was last locked as a whole, which is what decides if
+     * files that appear in live mode are locked automatically
+     * 
+     * @return {@code true} if the last bulk operation locked the workspace
+     */
+    public boolean isLocked() {
+        return locked;
+    }
 
-        int rm = Collections.binarySearch(projects, "School (Past)");
+    /**
+     * Turns subtree mode on or off. In subtree mode locking the workspace also
+     * takes away write permission from every folder under its src folders, so no
+     * file can be added to or deleted from them either. A folder that is already
+     * locked is trusted to hold only locked files, so locking again and checking
+     * the status of a locked workspace only cost a check per folder rather than
+     * per file. Unlocking always gives locked folders their write permission
+     * back, whether or not subtree mode is on. Subtree mode starts on if the
+     * wfs.subtree.locking system property is true.
+     * 
+     * @param subtreeLocking {@code true} to lock folders along with their files
+     * @see DirectoryLocks
+     */
+    public void setSubtreeLocking(boolean subtreeLocking) {
+        this.subtreeLocking = subtreeLocking;
+    }
 
-        if (rm >= 0)
-            projects.remove(rm);
+    /**
+     * Checks if subtree mode is on
+     * 
+     * @return {@code true} if folders are locked along with their files
+     * @see #setSubtreeLocking(boolean)
+     */
+    public boolean isSubtreeLocking() {
+        return subtreeLocking;
+    }
 
-        rm = Collections.binarySearch(projects, "LockerV2");
+    /**
+     * Turns verify mode on or off. In verify mode the SHA-256 digest of every file
+     * is recorded whenever the workspace is locked, so {@link #verify(boolean,
+     * BulkExecutor)} can later tell which files were changed. Verify mode starts
+     * on if the wfs.verify system property is true.
+     * 
+     * @param verifying {@code true} to record digests when locking
+     * @see IntegrityVerifier
+     */
+    public void setVerifying(boolean verifying) {
+        this.verifying = verifying;
+    }
 
-        if (rm >= 0)
-            projects.remove(rm);
+    /**
+     * Checks if verify mode is on
+     * 
+     * @return {@code true} if digests are recorded when locking
+     */
+    public boolean isVerifying() {
+        return verifying;
+    }
 
-        for (int i = 0; i < projects.size(); i++) {
-            if (projects.get(i).contains("."))
-                continue;
+    /**
+     * Adds a file found after the workspace was scanned, or replaces what is
+     * known of a file that was already there, used by {@link WorkspaceWatcher}
+     * 
+     * @param f The new source file
+     */
+    void addFile(SrcFile f) {
+        srcFiles.add(f);
+        edited();
+    }
 
-            String path = String.format("%s/%s/src", dir, projects.get(i));
+    /**
+     * Removes a deleted file, or every file under a deleted folder, used by
+     * {@link WorkspaceWatcher}
+     * 
+     * @param p The path that was deleted
+     */
+    void removeFiles(Path p) {
+        // a single file is found by its path, only a folder needs a pass over the
+        // ids, which compares the ids of folders rather than paths
+        if (!srcFiles.remove(p))
+            srcFiles.removeUnder(p);
+        edited();
+    }
 
-            File[] packages = new File(path).listFiles();
+    /**
+     * Marks the last status report as stale, used by {@link WorkspaceWatcher}
+     * whenever a file changes
+     */
+    void changed() {
+        generation.incrementAndGet();
+    }
 
-            if (checkPackages(packages))
-                return addFiles(packages);
+    /**
+     * Marks the last status report as stale and records the time of the edit,
+     * used by {@link WorkspaceWatcher} whenever a file is created, changed or
+     * deleted
+     */
+    void edited() {
+        lastEdit = System.currentTimeMillis();
+        changed();
+    }
 
-            files.addAll(addFilesWithPackages(packages));
+    /**
+     * Gets when a file of the workspace was last created, changed or deleted.
+     * Edits are only seen in live mode, otherwise this is when the
+     * {@code FileSearcher} was made. Changing the permissions of a file counts as
+     * an edit, so locking or unlocking the workspace does too.
+     * 
+     * @return The time of the last edit in milliseconds since the epoch
+     * @see #startWatching(boolean)
+     */
+    public long getLastEdit() {
+        return lastEdit;
+    }
 
+    /**
+     * Writes the lock state of every file back to the workspace's index, if it is
+     * indexed, so the next run starts from the current state. A failure only costs
+     * a rescan next time so it is reported and otherwise ignored.
+     */
+    private void saveIndex() {
+        if (!indexed)
+            return;
+
+        try {
+            index.save();
+        } catch (IOException e) {
+            System.out.printf("The index of %s could not be updated: %s\n", dir, e.getMessage());
         }
+    }
 
-        return files;
+    /**
+     * Adds a bulk operation to the workspace's ledger, if it keeps one and the
+     * operation changed or failed on any file or folder, or put the workspace in
+     * another state than the last entry says. A failure only costs the ability to
+     * undo the operation so it is reported and otherwise ignored.
+     */
+    private void record(boolean lock, Collection<SrcFile> changed, Collection<Path> changedFolders,
+            BulkResult result) {
+        if (ledger == null)
+            return;
+
+        try {
+            LockLedger.Entry last = ledger.last();
+            if (changed.isEmpty() && changedFolders.isEmpty() && result.isSuccess() && last != null
+                    && last.isLock() == lock)
+                return;
+            ledger.append(lock, changed, result.getFailures(), changedFolders, result.getFolderFailures());
+        } catch (IOException e) {
+            System.out.printf("The ledger of %s could not be updated: %s\n", dir, e.getMessage());
+        }
+    }
 
+    /**
+     * Gets the folders holding source files that are locked, checking each folder
+     * once, or none at all outside of subtree mode
+     */
+    private Set<String> lockedFolders() {
+        if (!subtreeLocking)
+            return Collections.emptySet();
+
+        Set<String> lockedFolders = new HashSet<>();
+        for (Path d : srcFiles.folders()) {
+            if (DirectoryLocks.isLocked(d))
+                lockedFolders.add(d.toString());
+        }
+        return lockedFolders;
     }
 
     /**
-     * Adds all files under every single subsequent packge under each specific
-     * project to a {@code HashSet} of {@code SrcFile} Objects. Iterates through
-     * each package, with in each iteration it takes the package, lists all of the
-     * files present within that package by using {@link java.io.File#listFiles()}
-     * and creates a new {@code File} array, which is then used by the
-     * {@link #addFiles(File[])} method to add all the files as new {@code SrcFile}
-     * Objects to the HashSet which is to be returned. Private because it does not
-     * need to be accessed by the user or other classes, as {@link #findFiles()}
-     * method already invokes it when an object of {@code FileSearcher} is created.
-     * 
-     * @param packages Array of {@code File} objects which contain the packages to
-     *                 be searched
-     * @return A {@code HashSet} of {@code SrcFile} Objects which are the source
-     *         code files within said workspace/projects
+     * Locks every given folder that is not already locked, adding the ones it
+     * locked to changed. A folder that can not be locked is a failure of the
+     * operation, and so is a folder holding a file the operation failed on, which
+     * is left unlocked as it can not be trusted to hold only locked files, so
+     * that trying the operation again locks it once the file is.
      */
+    private static void lockFolders(Collection<Path> folders, BulkResult result, List<Path> changed) {
+        Set<Path> holdingFailures = new HashSet<>();
+        for (SrcFile f : result.getFailures())
+            holdingFailures.add(f.getFile().toPath().toAbsolutePath().normalize().getParent());
+
+        for (Path d : folders) {
+            if (DirectoryLocks.isLocked(d))
+                continue;
+            if (!holdingFailures.contains(d) && DirectoryLocks.lock(d))
+                changed.add(d);
+            else
+                result.folderFailed(d);
+        }
+    }
 
-    private HashSet<SrcFile> addFilesWithPackages(File[] packages) {
-        HashSet<SrcFile> files = new HashSet<>();
-        for (int j = 0; j < packages.length; j++) {
-            File[] tmp = new File(packages[j].toString()).listFiles();
-            files.addAll(addFiles(tmp));
+    /**
+     * Unlocks every given folder that is locked, so files can be added to and
+     * deleted from it again, adding the ones it unlocked to changed
+     *
+     * @return The folders that could not be unlocked
+     */
+    private static List<Path> unlockFolders(Collection<Path> folders, List<Path> changed) {
+        List<Path> failed = new ArrayList<>();
+        for (Path d : folders) {
+            if (!DirectoryLocks.isLocked(d))
+                continue;
+            if (DirectoryLocks.unlock(d))
+                changed.add(d);
+            else
+                failed.add(d);
         }
+        return failed;
+    }
 
-        return files;
+    private synchronized IntegrityVerifier integrity() {
+        if (integrity == null)
+            integrity = IntegrityVerifier.load(dir.toPath());
+        return integrity;
     }
 
     /**
-     * Adds files in the {@code File[]} called tmp to {@code HashSet} of
-     * {@code SrcFile} objects which is the {@code HashSet} to be returned. Does
-     * this by using the {@link java.util.Arrays#stream(Object[])} method and then
-     * using the
-     * {@link java.util.stream.Stream#forEach(java.util.function.Consumer)} method.
-     * Through the foreach method, it creates a new {@code SrcFile} Object then adds
-     * it to the {@code HashSet}. Private as this function is called by and only
-     * needed by {@link #addFilesWithPackages(File[])} and {@link #findSingular()}
-     * and is not to be accessed outside of this class.
-     * 
-     * 
-     * @param tmp A {@code File[]} of source code files to be added to the
-     *            {@code HashSet}
-     * @return A {@code HashSet} as a {@code SrcFile} Objects of all source code
-     *         files as denoted by the tmp {@code File[]}
-     * @see attributes.SrcFile
-     */
-
-    private HashSet<SrcFile> addFiles(File[] tmp) {
-        HashSet<SrcFile> files = new HashSet<>();
-        Arrays.stream(tmp).forEach(x -> {
-            files.add(new SrcFile(x));
-        });
-        return files;
-    }
-
-    /**
-     * Method used as a provision for when there is only a single project in the
-     * workspace or directory as denoted by the user. If there are packages under
-     * said project, then the {@code File[]} is filled with the package names. If
-     * there are no packages under said project, the {@code File[]} is filled with
-     * the source code files, in both ways the array is populated by using the
-     * {@link java.io.File#listFiles()} method. If said project has no packages, it
-     * subseqeuntly then satisfies the {@link #checkPackages(File[])} method, which
-     * then
-     * returns a {@code HashSet}, populated by the {@link #addFiles(File[])} method
-     * which is a {@code HashSet} of {@code SrcFile} objects. When the project does
-     * have packages and subseqeuntly does not satisfy the
-     * {@link #checkPackages(File[])}
-     * method, it then uses the
-     * {@link java.util.AbstractCollection#addAll(java.util.Collection)} method to
-     * add all of the contents of the {@code HashSet} that is returned by
-     * {@link #addFilesWithPackages(File[])} method. Private as it is called and
-     * only needed by {@link #findFiles()} and doesn't need to be accessed by other
-     * classes or instances of this object
-     * 
-     * 
-     * @return A {@code HashSet} of {@code SrcFile} Objects which contains every
-     *         source code found under said singular project and subsequent packages
+     * Records the digest of every file that changed since it was last recorded and
+     * writes them out. A failure only costs the ability to verify the files so it
+     * is reported and otherwise ignored.
+     */
+    private void recordDigests(BulkExecutor executor) {
+        IntegrityVerifier v = integrity();
+        BulkResult hashed = v.record(srcFiles, executor);
+        try {
+            v.save();
+        } catch (IOException e) {
+            System.out.printf("The digests of %s could not be updated: %s\n", dir, e.getMessage());
+        }
+        for (SrcFile f : hashed.getFailures())
+            System.out.printf("The digest of %s could not be recorded\n", f);
+    }
+
+    /**
+     * Adds a file to the queue of changed files if the operation on it succeeded,
+     * and keeps its new state in the set of source files
      */
+    private boolean track(Queue<SrcFile> changed, SrcFile f, boolean done) {
+        if (keep(f, done))
+            changed.add(f);
+        return done;
+    }
 
-    private HashSet<SrcFile> findSingular() {
+    /**
+     * Keeps the new state of a file in the set of source files after an operation
+     * on it, passing on whether it succeeded
+     */
+    private boolean keep(SrcFile f, boolean done) {
+        srcFiles.update(f);
+        return done;
+    }
 
-        HashSet<SrcFile> files = new HashSet<>();
+    /**
+     * Checks if one of the workspace's files is already in the wanted state like
+     * {@link #isInState(SrcFile, boolean)}, keeping what was read in the set of
+     * source files so the next check can again skip reading its lock state
+     */
+    private boolean isKnownInState(SrcFile f, boolean lock) {
+        boolean in = isInState(f, lock);
+        srcFiles.update(f);
+        return in;
+    }
 
-        String path = String.format("%s/src", dir);
+    /**
+     * Checks if a file is already in the wanted state, as read from disk now
+     * rather than from its snapshot, which may be from the index or from before
+     * the file was changed outside the program. The read is cheap as the lock
+     * state is only checked again if the file's change time moved. A file that
+     * can not be read counts as not in the state, so the operation is tried and
+     * its failure reported.
+     */
+    private static boolean isInState(SrcFile f, boolean lock) {
+        try {
+            return f.refreshState() == lock;
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-        File[] packages = new File(path).listFiles();
+    /**
+     * Gets the source files at paths relative to the workspace, as recorded in the
+     * ledger, each found by its path among the files in memory, or read from disk
+     * if it is no longer one of them
+     */
+    private List<SrcFile> resolve(List<String> relative) {
+        Path root = dir.toPath().toAbsolutePath().normalize();
+        List<SrcFile> resolved = new ArrayList<>(relative.size());
+        for (String p : relative) {
+            Path file = root.resolve(p);
+            SrcFile f = srcFiles.get(file);
+            resolved.add(f != null ? f : new SrcFile(file.toFile()));
+        }
+        return resolved;
+    }
 
-        if (checkPackages(packages))
-            return addFiles(packages);
+    /**
+     * Gets the folders at paths relative to the workspace, as recorded in the
+     * ledger
+     */
+    private List<Path> resolveFolders(List<String> paths) {
+        Path root = dir.toPath().toAbsolutePath().normalize();
+        List<Path> folders = new ArrayList<>(paths.size());
+        for (String p : paths)
+            folders.add(root.resolve(p).normalize());
+        return folders;
+    }
 
-        files.addAll(addFilesWithPackages(packages));
-        return files;
+    /**
+     * Locks all files using the {@link attributes.SrcFile#lockFile()} method on the
+     * shared {@link BulkExecutor}
+     * 
+     * @return The {@link BulkResult} of the operation, which
+     *         {@link BulkResult#isSuccess()} if and only if there is no problem
+     *         "locking the files"
+     * @see #lockAll(BulkExecutor)
+     */
 
+    public BulkResult lockAll() {
+        return lockAll(BulkExecutor.shared());
     }
 
     /**
+     * Locks all files using the {@link attributes.SrcFile#lockFile()} method, with
+     * as many files being locked at once as the executor allows. Files whose
+     * permissions, read again from disk on the executor's threads, show they are
+     * already locked are skipped without being written to, so locking a mostly
+     * locked workspace costs one stat per file. If there is an error to
+     * locking a file (setting to read only), the file is recorded as a failure in
+     * the returned result. Runs one at a time with every other lock, unlock, undo
+     * and status check of the workspace, so requests from many threads never
+     * leave the files, the recorded state and the ledger disagreeing.
      * 
-     * Boolean method used to check if said project in directory denoted by the user
-     * has packages or if the project has any source code in it at all. First checks
-     * to make sure it has either packages or source code with in the project
-     * entirely which is decided by the contents of the {@code File[]} that is
-     * passed through by using the {@link java.util.Arrays#asList(Object...)}.If
-     * true, then it checks if there is any packages, by checking if the first file
-     * contains the .java extension by using the
-     * {@link java.lang.String#contains(CharSequence)}. Private as this method is
-     * invoked by {@link #findSingular()} and {@link #findFiles()} and does not need
-     * to be accessed by created instances of this object or by the user.
+     * @param executor The {@code BulkExecutor} the files are locked on
+     * @return The {@link BulkResult} of the operation
+     * @see attributes.LockBackend#lock(java.nio.file.Path)
+     */
+
+    public synchronized BulkResult lockAll(BulkExecutor executor) {
+        this.locked = true;
+        Set<String> lockedFolders = lockedFolders();
+        Queue<SrcFile> changed = new ConcurrentLinkedQueue<>();
+        BulkResult result = executor.run(srcFiles,
+                f -> lockedFolders.contains(f.getFile().getParent()) || isKnownInState(f, true),
+                f -> track(changed, f, f.lockFile()));
+        List<Path> changedFolders = new ArrayList<>();
+        if (subtreeLocking)
+            lockFolders(DirectoryLocks.folders(srcFiles.folders(), index), result, changedFolders);
+        if (verifying)
+            recordDigests(executor);
+        changed();
+        saveIndex();
+        record(true, changed, changedFolders, result);
+        OperationMetrics.get().dump();
+        return result;
+    }
+
+    /**
+     * Unlocks all files using the {@link attributes.SrcFile#unlockFile()} method on
+     * the shared {@link BulkExecutor}
      * 
-     * @param arr A {@code File[]} of the pathnames of the files, if any under the
-     *            directory denoted by either the project that is being searched or
-     *            the singular project as denoted by the user.
-     * @return {@code true} if and only if the arr is not empty and contains source
-     *         files, otherwise {@code false}
+     * @return The {@link BulkResult} of the operation, which
+     *         {@link BulkResult#isSuccess()} if and only if there is no problem
+     *         "unlocking the files"
+     * @see #unlockAll(BulkExecutor)
      */
 
-    private boolean checkPackages(File[] arr) {
-        return !Arrays.asList(arr).isEmpty() && arr[0].toString().contains(".java");
+    public BulkResult unlockAll() {
+        return unlockAll(BulkExecutor.shared());
     }
 
     /**
-     * Locks all files using the {@link attributes.SrcFile#lockFile()} method using
-     * a for each loop. If there is an error to locking a file (setting to read
-     * only), it prints out an error message, at which file and sets the return
-     * boolean to false
+     * Unlocks all files using the {@link attributes.SrcFile#unlockFile()} method,
+     * with as many files being unlocked at once as the executor allows. Files
+     * whose permissions show they are already unlocked are skipped without being
+     * written to. If there
+     * is an error in unlocking the file (making it writable), the file is recorded
+     * as a failure in the returned result. Runs one at a time with every other
+     * operation on the workspace, like {@link #lockAll(BulkExecutor)}.
      * 
-     * @return {@code true} if and only if there is no problem "locking the files",
-     *         {@code false} if otherwise
-     * @see java.io.File#setReadOnly()
+     * @param executor The {@code BulkExecutor} the files are unlocked on
+     * @return The {@link BulkResult} of the operation
+     * @see attributes.LockBackend#unlock(java.nio.file.Path)
      */
 
-    public boolean lockAll() {
+    public synchronized BulkResult unlockAll(BulkExecutor executor) {
+        this.locked = false;
+        List<Path> changedFolders = new ArrayList<>();
+        List<Path> failedFolders = unlockFolders(DirectoryLocks.folders(srcFiles.folders(), index), changedFolders);
+        Queue<SrcFile> changed = new ConcurrentLinkedQueue<>();
+        BulkResult result = executor.run(srcFiles, f -> isKnownInState(f, false),
+                f -> track(changed, f, f.unlockFile()));
+        failedFolders.forEach(result::folderFailed);
+        changed();
+        saveIndex();
+        record(false, changed, changedFolders, result);
+        OperationMetrics.get().dump();
+        return result;
+    }
 
-        boolean locked = true;
+    /**
+     * Undoes the last lock or unlock recorded in the workspace's ledger, putting
+     * back only the files it changed, and the folders it changed in subtree mode.
+     * The entry is removed from the ledger, so calling this again undoes the
+     * operation before it. If some files or folders can not be put back the entry
+     * is kept with just those.
+     * 
+     * @param executor The {@code BulkExecutor} the files are changed on
+     * @return The {@link BulkResult} of putting the files back
+     * @throws IOException           if the ledger can not be read or updated
+     * @throws IllegalStateException if there is nothing to undo, or the last
+     *                               operation was streamed and can not be undone
+     * @see LockLedger
+     */
+    public synchronized BulkResult undoLast(BulkExecutor executor) throws IOException {
+        LockLedger.Entry last = ledger == null ? null : ledger.last();
+        if (last == null)
+            throw new IllegalStateException("There is nothing to undo in " + dir);
+        if (!last.isUndoable())
+            throw new IllegalStateException(String.format(
+                    "The last %s of %s was streamed without recording the files it changed, it can not be undone",
+                    last.isLock() ? "lock" : "unlock", dir));
+
+        boolean lock = !last.isLock();
+        List<SrcFile> files = resolve(last.getChanged());
+        List<Path> folders = resolveFolders(last.getChangedFolders());
+        List<Path> putBack = new ArrayList<>();
+        List<Path> failedFolders = lock ? Collections.emptyList() : unlockFolders(folders, putBack);
+        BulkResult result = executor.run(files, f -> isKnownInState(f, lock),
+                f -> keep(f, lock ? f.lockFile() : f.unlockFile()));
+        if (lock)
+            lockFolders(folders, result, putBack);
+        else
+            failedFolders.forEach(result::folderFailed);
+
+        if (!ledger.dropLast(last))
+            System.out.printf("The ledger of %s was added to while undoing, its last entry was kept\n", dir);
+        else if (!result.isSuccess())
+            ledger.append(last.isLock(), result.getFailures(), Collections.emptyList(), result.getFolderFailures(),
+                    Collections.emptyList());
+
+        this.locked = lock;
+        changed();
+        saveIndex();
+        OperationMetrics.get().dump();
+        return result;
+    }
 
-        for (SrcFile x : this.srcFiles) {
-            locked = x.lockFile();
-            if (!locked) {
-                System.out.printf("There was an error at file %s it could not lock\n", x.toString());
-                locked = false;
-            }
-        }
+    /**
+     * Brings every file into the given state changing only the files that differ
+     * from it, without reading the whole workspace from disk again. If the last
+     * operation in the ledger was towards the same state only the files and
+     * folders it failed on are tried again, which is how a partly failed lock or
+     * unlock is recovered from. Otherwise the files are picked by their current
+     * lock state, along with every folder when unlocking or locking in subtree
+     * mode. The operation is recorded in the ledger like any other.
+     * 
+     * @param lock     {@code true} to bring every file into the locked state
+     * @param executor The {@code BulkExecutor} the files are changed on
+     * @return The {@link BulkResult} of the operation
+     * @throws IOException if the ledger can not be read
+     */
+    public synchronized BulkResult applyDelta(boolean lock, BulkExecutor executor) throws IOException {
+        LockLedger.Entry last = ledger == null ? null : ledger.last();
+        boolean retry = last != null && last.isLock() == lock;
+        Iterable<SrcFile> files = retry ? resolve(last.getFailed()) : srcFiles;
+        Collection<Path> folders;
+        if (retry)
+            folders = resolveFolders(last.getFailedFolders());
+        else
+            folders = !lock || subtreeLocking ? DirectoryLocks.folders(srcFiles.folders(), index)
+                    : Collections.emptyList();
+
+        this.locked = lock;
+        List<Path> changedFolders = new ArrayList<>();
+        List<Path> failedFolders = lock ? Collections.emptyList() : unlockFolders(folders, changedFolders);
+        Queue<SrcFile> changed = new ConcurrentLinkedQueue<>();
+        BulkResult result = executor.run(files, f -> isKnownInState(f, lock),
+                f -> track(changed, f, lock ? f.lockFile() : f.unlockFile()));
+        if (lock)
+            lockFolders(folders, result, changedFolders);
+        else
+            failedFolders.forEach(result::folderFailed);
+        changed();
+        saveIndex();
+        record(lock, changed, changedFolders, result);
+        OperationMetrics.get().dump();
+        return result;
+    }
 
-        return locked;
+    /**
+     * Checks the content of every file against the digest recorded when the
+     * workspace was last locked in verify mode, hashing the files in parallel.
+     * Files whose modified time and size have not changed since are not read
+     * again unless a full check is asked for.
+     * 
+     * @param full     If every file should be hashed whether or not it looks
+     *                 unchanged
+     * @param executor The {@code BulkExecutor} the files are hashed on
+     * @return The {@link IntegrityReport} of the workspace
+     * @throws IOException if the digests can not be updated
+     * @see #setVerifying(boolean)
+     */
+    public IntegrityReport verify(boolean full, BulkExecutor executor) throws IOException {
+        IntegrityVerifier v = integrity();
+        IntegrityReport report = v.verify(srcFiles, executor, full);
+        v.save();
+        OperationMetrics.get().dump();
+        return report;
+    }
 
+    /**
+     * Checks the lock status of every file against the state the workspace was
+     * last locked or unlocked into
+     * 
+     * @return The {@link StatusReport} of the workspace
+     * @see #status(boolean, BulkExecutor)
+     */
+    public StatusReport status() {
+        return status(locked);
     }
 
     /**
-     * Unlocks all files using the {@link attributes.SrcFile#unlockFile()} method by
-     * using a for each loop to access all of them that are present in the
-     * {@code HashSet}. If there is an error in unlocking the file (making it
-     * writable), it prints out an error message at that file and sets the return
-     * boolean to false.
+     * Checks the lock status of every file against the state the workspace was
+     * last locked or unlocked into, on the given executor
      * 
-     * @return {@code true} if and only if there is no problem "unlocking the
-     *         files",
-     *         {@code false} if otherwise
-     * @see java.io.File#setWritable(boolean)
+     * @param executor The {@code BulkExecutor} the files are checked on
+     * @return The {@link StatusReport} of the workspace
+     * @see #status(boolean, BulkExecutor)
      */
+    public StatusReport status(BulkExecutor executor) {
+        return status(locked, executor);
+    }
 
-    public boolean unlockAll() {
+    /**
+     * Gets the state a workspace was last locked or unlocked into as a whole, as
+     * recorded in its ledger, for checking the status of a workspace that is not
+     * held in memory
+     * 
+     * @param root The workspace directory
+     * @return {@code true} if the workspace was last locked, {@code false} if it
+     *         was last unlocked or has never been locked
+     * @throws IOException if the ledger can not be read
+     */
+    public static boolean wasLastLocked(Path root) throws IOException {
+        LockLedger.Entry last = LockLedger.open(root).last();
+        return last != null && last.isLock();
+    }
 
-        boolean unlocked = false;
+    /**
+     * Checks the lock status of every file on the shared {@link BulkExecutor}
+     * 
+     * @param expectLocked If every file is expected to be locked
+     * @return The {@link StatusReport} of the workspace
+     * @see #status(boolean, BulkExecutor)
+     */
+    public StatusReport status(boolean expectLocked) {
+        return status(expectLocked, BulkExecutor.shared());
+    }
 
-        for (SrcFile x : this.srcFiles) {
-            unlocked = x.unlockFile();
-            if (!unlocked) {
-                System.out.printf("There was an error at file %s it could not unlock", x.toString());
-                unlocked = false;
+    /**
+     * Checks the lock status of every file in parallel, counting the locked,
+     * unlocked and missing files and listing every file not in the expected state.
+     * Each file's lock state is only read again if its change time moved since it
+     * was last read, through {@link attributes.SrcFile#refreshState()}. In subtree
+     * mode the files of a locked folder are counted as locked without reading
+     * them when every file is expected to be locked. In live
+     * mode, if nothing has changed since the last report the last report is
+     * returned without touching the disk at all.
+     * 
+     * @param expectLocked If every file is expected to be locked
+     * @param executor     The {@code BulkExecutor} the files are checked on
+     * @return The {@link StatusReport} of the workspace
+     */
+    public synchronized StatusReport status(boolean expectLocked, BulkExecutor executor) {
+        long current = generation.get();
+
+        if (watcher != null && lastStatus != null && lastStatusGeneration == current
+                && lastStatus.isExpectLocked() == expectLocked)
+            return lastStatus;
+
+        StatusReport report = new StatusReport(expectLocked);
+        Set<String> lockedFolders = expectLocked ? lockedFolders() : Collections.emptySet();
+        if (lockedFolders.isEmpty())
+            executor.forEach(srcFiles, f -> checkAndKeep(report, f));
+        else {
+            List<SrcFile> unsure = new ArrayList<>();
+            int trusted = 0;
+            for (SrcFile f : srcFiles) {
+                if (lockedFolders.contains(f.getFile().getParent()))
+                    trusted++;
+                else
+                    unsure.add(f);
             }
+            report.countLocked(trusted);
+            executor.forEach(unsure, f -> checkAndKeep(report, f));
+        }
+        OperationMetrics.get().dump();
+
+        lastStatus = report;
+        lastStatusGeneration = current;
+        return report;
+    }
+
+    /**
+     * Checks a file for the status report, keeping the state that was read in the
+     * set of source files
+     */
+    private void checkAndKeep(StatusReport report, SrcFile f) {
+        report.check(f);
+        srcFiles.update(f);
+    }
+
+    /**
+     * Locks every file of a stream of source files without ever holding them all,
+     * such as one from {@link WorkspaceStream#files(Path, ScanRules)}, so memory
+     * use stays the same however large the workspace is. Each file is handed to
+     * the executor as it is produced, and files whose permissions show they are
+     * already locked are skipped. The stream is closed once every file is locked.
+     *
+     * @param files    The source files to lock
+     * @param executor The {@code BulkExecutor} the files are locked on
+     * @return The {@link BulkResult} of the operation
+     */
+    public static BulkResult lockAll(Stream<SrcFile> files, BulkExecutor executor) {
+        try (files) {
+            BulkResult result = executor.run(files::iterator, f -> isInState(f, true), SrcFile::lockFile);
+            OperationMetrics.get().dump();
+            return result;
+        }
+    }
+
+    /**
+     * Unlocks every file of a stream of source files without ever holding them
+     * all, skipping the ones already unlocked. The stream is closed once every
+     * file is unlocked.
+     *
+     * @param files    The source files to unlock
+     * @param executor The {@code BulkExecutor} the files are unlocked on
+     * @return The {@link BulkResult} of the operation
+     * @see #lockAll(Stream, BulkExecutor)
+     */
+    public static BulkResult unlockAll(Stream<SrcFile> files, BulkExecutor executor) {
+        try (files) {
+            BulkResult result = executor.run(files::iterator, f -> isInState(f, false), SrcFile::unlockFile);
+            OperationMetrics.get().dump();
+            return result;
+        }
+    }
+
+    /**
+     * Checks the lock status of a stream of source files without ever holding
+     * them all, only the files not in the expected state are kept for the report.
+     * The stream is closed once every file is checked.
+     *
+     * @param files        The source files to check
+     * @param expectLocked If every file is expected to be locked
+     * @param executor     The {@code BulkExecutor} the files are checked on
+     * @return The {@link StatusReport} of the files
+     */
+    public static StatusReport status(Stream<SrcFile> files, boolean expectLocked, BulkExecutor executor) {
+        try (files) {
+            StatusReport report = new StatusReport(expectLocked);
+            executor.forEach(files::iterator, report::check);
+            OperationMetrics.get().dump();
+            return report;
         }
-        return unlocked;
     }
 
     @Override
@@ -287,4 +870,4 @@ public class FileSearcher {
         return this.dir.toString();
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
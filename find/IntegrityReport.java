@@ -0,0 +1,141 @@
+package find;
+
+import attributes.SrcFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Result of checking the content of every source file in a workspace against
+ * the digests recorded when it was locked, see
+ * {@link IntegrityVerifier#verify(Iterable, BulkExecutor, boolean)}. Counts the
+ * files whose content was hashed and matched, the files skipped as their
+ * modified time and size are unchanged, and the files with no recorded digest,
+ * and lists every file whose content changed or that no longer exists. Safe to
+ * be filled in from many threads at once.
+ */
+
+public class IntegrityReport {
+
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+    private final LongAdder unrecorded = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Queue<SrcFile> tampered = new ConcurrentLinkedQueue<>();
+    private final Queue<SrcFile> missing = new ConcurrentLinkedQueue<>();
+    private long elapsedNanos;
+
+    IntegrityReport() {
+    }
+
+    void verified(long size) {
+        verified.increment();
+        bytes.add(size);
+    }
+
+    void unchanged() {
+        unchanged.increment();
+    }
+
+    void unrecorded() {
+        unrecorded.increment();
+    }
+
+    void tampered(SrcFile f, long size) {
+        tampered.add(f);
+        bytes.add(size);
+    }
+
+    void missing(SrcFile f) {
+        missing.add(f);
+    }
+
+    void finished(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Checks if no file was changed or deleted since its digest was recorded
+     *
+     * @return {@code true} if every recorded file is intact
+     */
+    public boolean isIntact() {
+        return tampered.isEmpty() && missing.isEmpty();
+    }
+
+    /**
+     * Gets the number of files that were hashed and matched their digest
+     *
+     * @return The number of verified files
+     */
+    public long getVerified() {
+        return verified.sum();
+    }
+
+    /**
+     * Gets the number of files not hashed as their modified time and size are
+     * the same as when their digest was recorded
+     *
+     * @return The number of unchanged files
+     */
+    public long getUnchanged() {
+        return unchanged.sum();
+    }
+
+    /**
+     * Gets the number of files with no recorded digest, which were never locked
+     * with verification on
+     *
+     * @return The number of unrecorded files
+     */
+    public long getUnrecorded() {
+        return unrecorded.sum();
+    }
+
+    /**
+     * Gets the number of bytes that were hashed
+     *
+     * @return The bytes read
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Gets every file whose content no longer matches its digest
+     *
+     * @return A {@code List} of the tampered files
+     */
+    public List<SrcFile> getTampered() {
+        return new ArrayList<>(tampered);
+    }
+
+    /**
+     * Gets every file with a recorded digest that no longer exists
+     *
+     * @return A {@code List} of the missing files
+     */
+    public List<SrcFile> getMissing() {
+        return new ArrayList<>(missing);
+    }
+
+    /**
+     * Gets how long the verification took
+     *
+     * @return The elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d verified, %d unchanged, %d unrecorded, %d tampered, %d missing, "
+                + "%.1f MB hashed in %d ms", getVerified(), getUnchanged(), getUnrecorded(), tampered.size(),
+                missing.size(), getBytes() / 1e6, elapsedNanos / 1_000_000);
+    }
+
+}
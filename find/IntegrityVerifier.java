@@ -0,0 +1,307 @@
+package find;
+
+import attributes.SrcFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA-256 digests of the content of every source file in a workspace, recorded
+ * when the workspace is locked and kept in the digests folder next to the
+ * info.dat file, so it can later be told whether a file was changed while it
+ * was unlocked or by someone who got around its lock. Files are hashed in
+ * parallel on a {@link BulkExecutor}, large files through memory mapped
+ * {@code FileChannel} reads and small ones through a single read into a buffer
+ * reused by each thread, as mapping costs more than reading for a few
+ * kilobytes. A file whose modified time and size are the same as when its
+ * digest was recorded is not read again unless a full check is asked for.
+ */
+
+public class IntegrityVerifier {
+
+    // Folder the digest files are kept in, next to info.dat
+    public static final String DIGEST_DIR = "digests";
+
+    private static final int MAGIC = 0x57465344;
+    private static final int VERSION = 1;
+
+    // Files at least this large are mapped rather than read
+    private static final long MAP_THRESHOLD = 256 * 1024;
+
+    // Most of a file mapped at once
+    private static final long MAP_CHUNK = 64L * 1024 * 1024;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal
+            .withInitial(() -> ByteBuffer.allocateDirect((int) MAP_THRESHOLD));
+
+    /**
+     * Recorded digest of a single file, with the modified time and size it had
+     */
+    private static class Digest {
+        final long lastModified;
+        final long size;
+        final byte[] hash;
+
+        Digest(long lastModified, long size, byte[] hash) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    private final Path root;
+    private final Map<String, Digest> digests = new ConcurrentHashMap<>();
+
+    private IntegrityVerifier(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Gets the file the digests of the workspace denoted by root are kept in
+     *
+     * @param root The workspace directory
+     * @return The path of the digest file
+     * @see WorkspaceIndex#nameFor(Path)
+     */
+    public static Path fileFor(Path root) {
+        return Paths.get(DIGEST_DIR, WorkspaceIndex.nameFor(root) + ".sha");
+    }
+
+    /**
+     * Loads the digests of the workspace denoted by root. Digests that are
+     * missing, unreadable or of a different workspace are ignored, as the worst
+     * case is that every file counts as unrecorded.
+     *
+     * @param root The workspace directory
+     * @return The loaded digests, or none
+     */
+    public static IntegrityVerifier load(Path root) {
+        IntegrityVerifier v = new IntegrityVerifier(root);
+        Path file = fileFor(root);
+
+        if (!Files.isRegularFile(file))
+            return v;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(v.root.toString()))
+                return v;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String rel = in.readUTF();
+                long lastModified = in.readLong();
+                long size = in.readLong();
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                v.digests.put(rel, new Digest(lastModified, size, hash));
+            }
+        } catch (IOException e) {
+            v.digests.clear();
+        }
+
+        return v;
+    }
+
+    /**
+     * Writes the digests to their file, first to a temporary file which then
+     * replaces the old one
+     *
+     * @throws IOException if the digests can not be written
+     */
+    public void save() throws IOException {
+        Path file = fileFor(root);
+        Files.createDirectories(file.getParent());
+        // a temporary file of its own, as other threads or runs may save the same digests
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(root.toString());
+
+                Map<String, Digest> snapshot = Map.copyOf(digests);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Digest> e : snapshot.entrySet()) {
+                    Digest d = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(d.lastModified);
+                    out.writeLong(d.size);
+                    out.writeByte(d.hash.length);
+                    out.write(d.hash);
+                }
+            }
+
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Gets the number of files with a recorded digest
+     *
+     * @return The number of digests
+     */
+    public int size() {
+        return digests.size();
+    }
+
+    /**
+     * Records the digest of every file in parallel, skipping files whose modified
+     * time and size are the same as when their digest was last recorded. The
+     * digests of files that are no longer among the files given are dropped, as
+     * the files recorded are the new state of the workspace.
+     *
+     * @param files    The files to record
+     * @param executor The {@code BulkExecutor} the files are hashed on
+     * @return The {@link BulkResult} of hashing, listing every file that could not
+     *         be read
+     */
+    public BulkResult record(Iterable<SrcFile> files, BulkExecutor executor) {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        BulkResult result = executor.run(files, f -> {
+            try {
+                Path p = f.getFile().toPath();
+                String key = key(p);
+                seen.add(key);
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                long lastModified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+                Digest d = digests.get(key);
+                if (d == null || d.lastModified != lastModified || d.size != attrs.size())
+                    digests.put(key, new Digest(lastModified, attrs.size(), hash(p, attrs.size())));
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+
+        digests.keySet().retainAll(seen);
+        return result;
+    }
+
+    /**
+     * Checks the content of every file against its recorded digest in parallel.
+     * Unless a full check is asked for, a file whose modified time and size are
+     * the same as when its digest was recorded is counted as unchanged without
+     * being read. A file that is hashed and matches has its new modified time
+     * recorded so it is skipped next time. Every file with a recorded digest that
+     * is not among the files given, such as one deleted before the workspace was
+     * searched again, is reported as missing.
+     *
+     * @param files    The files to check
+     * @param executor The {@code BulkExecutor} the files are hashed on
+     * @param full     If every file should be hashed whether or not it looks
+     *                 unchanged
+     * @return The {@link IntegrityReport} of the files
+     */
+    public IntegrityReport verify(Iterable<SrcFile> files, BulkExecutor executor, boolean full) {
+        IntegrityReport report = new IntegrityReport();
+        long start = System.nanoTime();
+
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        executor.forEach(files, f -> {
+            Path p = f.getFile().toPath();
+            String key = key(p);
+            seen.add(key);
+            Digest d = digests.get(key);
+            if (d == null) {
+                report.unrecorded();
+                return;
+            }
+
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                long lastModified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+                if (!full && d.lastModified == lastModified && d.size == attrs.size()) {
+                    report.unchanged();
+                    return;
+                }
+
+                if (d.size == attrs.size() && Arrays.equals(d.hash, hash(p, attrs.size()))) {
+                    report.verified(attrs.size());
+                    digests.put(key, new Digest(lastModified, d.size, d.hash));
+                } else
+                    report.tampered(f, attrs.size());
+            } catch (NoSuchFileException e) {
+                report.missing(f);
+            } catch (IOException e) {
+                report.tampered(f, 0);
+            }
+        });
+
+        for (String key : digests.keySet())
+            if (!seen.contains(key))
+                report.missing(new SrcFile(new File(root.toFile(), key), 0, 0, false));
+
+        report.finished(System.nanoTime() - start);
+        return report;
+    }
+
+    private String key(Path p) {
+        return root.relativize(p.toAbsolutePath().normalize()).toString();
+    }
+
+    /**
+     * Hashes the content of a file, mapping it in chunks if it is large and
+     * otherwise reading it in one go
+     *
+     * @param p    The file
+     * @param size The file's size
+     * @return The SHA-256 digest of the file
+     * @throws IOException if the file can not be read
+     */
+    static byte[] hash(Path p, long size) throws IOException {
+        MessageDigest md = SHA256.get();
+        md.reset();
+
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            if (size >= MAP_THRESHOLD) {
+                for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                    MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos));
+                    md.update(map);
+                }
+            } else {
+                ByteBuffer buf = BUFFER.get();
+                buf.clear();
+                while (ch.read(buf) > 0 && buf.hasRemaining())
+                    ;
+                buf.flip();
+                md.update(buf);
+            }
+        }
+
+        return md.digest();
+    }
+
+}
@@ -0,0 +1,505 @@
+package find;
+
+import attributes.SrcFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary log of the bulk operations run on a single workspace, kept in the
+ * ledger folder next to the info.dat file. Every entry records whether the
+ * operation locked or unlocked, the files it actually changed and the files it
+ * failed on, and likewise the folders it changed and failed on in subtree mode,
+ * as paths relative to the workspace. This is what lets
+ * {@link FileSearcher#undoLast(BulkExecutor)} put back only the files and
+ * folders the last operation changed, and
+ * {@link FileSearcher#applyDelta(boolean, BulkExecutor)} retry only the files
+ * and folders an operation failed on, instead of going over the whole
+ * workspace again. A workspace locked or unlocked as a stream never holds its
+ * files, so its entries only record the state it was put in and the files that
+ * failed, and can not be undone.
+ *
+ * Each entry is written as its length, its content and a checksum, and an entry
+ * torn by a crash is dropped when the ledger is next read. Only the last
+ * {@value #MAX_ENTRIES} entries are kept.
+ *
+ * The daemon and batch runs may use the same ledger at once, so every read and
+ * write is made under an exclusive lock on a lock file next to it, which stays
+ * the same file when the ledger is trimmed and replaced. Under the lock a
+ * ledger first catches up with whatever other processes appended, dropped or
+ * trimmed since it last looked, so it always appends at the real end.
+ */
+
+public class LockLedger {
+
+    // Folder the ledger files are kept in, next to info.dat
+    public static final String LEDGER_DIR = "ledger";
+
+    static final int MAX_ENTRIES = 64;
+
+    // One monitor per ledger file, as a file lock only keeps other processes out
+    private static final Map<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+    /**
+     * A single bulk operation in the ledger
+     */
+    public static class Entry {
+        private final long time;
+        private final boolean lock;
+        private final List<String> changed;
+        private final List<String> failed;
+        private final boolean undoable;
+        private final List<String> changedFolders;
+        private final List<String> failedFolders;
+
+        // Where the entry was read from, to tell if it is still the last one
+        private long offset = -1;
+
+        Entry(long time, boolean lock, List<String> changed, List<String> failed, boolean undoable,
+                List<String> changedFolders, List<String> failedFolders) {
+            this.time = time;
+            this.lock = lock;
+            this.changed = changed;
+            this.failed = failed;
+            this.undoable = undoable;
+            this.changedFolders = changedFolders;
+            this.failedFolders = failedFolders;
+        }
+
+        /**
+         * Gets when the operation finished
+         *
+         * @return The time in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Gets if the operation locked or unlocked the files
+         *
+         * @return {@code true} if the operation locked
+         */
+        public boolean isLock() {
+            return lock;
+        }
+
+        /**
+         * Gets the files the operation changed
+         *
+         * @return The paths of the files relative to the workspace
+         */
+        public List<String> getChanged() {
+            return Collections.unmodifiableList(changed);
+        }
+
+        /**
+         * Gets the files the operation failed on
+         *
+         * @return The paths of the files relative to the workspace
+         */
+        public List<String> getFailed() {
+            return Collections.unmodifiableList(failed);
+        }
+
+        /**
+         * Checks if the files the operation changed were recorded, which they are
+         * not for a workspace locked or unlocked as a stream
+         *
+         * @return {@code true} if the operation can be undone
+         */
+        public boolean isUndoable() {
+            return undoable;
+        }
+
+        /**
+         * Gets the folders the operation locked or unlocked along with the files
+         *
+         * @return The paths of the folders relative to the workspace
+         */
+        public List<String> getChangedFolders() {
+            return Collections.unmodifiableList(changedFolders);
+        }
+
+        /**
+         * Gets the folders the operation failed to lock or unlock
+         *
+         * @return The paths of the folders relative to the workspace
+         */
+        public List<String> getFailedFolders() {
+            return Collections.unmodifiableList(failedFolders);
+        }
+    }
+
+    /**
+     * Work done on the ledger while it is locked
+     */
+    @FunctionalInterface
+    private interface Locked<T> {
+        T run() throws IOException;
+    }
+
+    private final Path root;
+    private final Path file;
+    private final Path lockFile;
+    private final Object monitor;
+
+    // Offset of every entry in the file, followed by the end of the last one
+    private final List<Long> offsets = new ArrayList<>();
+
+    // The file the offsets were read from, to tell when another run replaced it
+    private Object fileKey;
+
+    private LockLedger(Path root, Path file) {
+        this.root = root.toAbsolutePath().normalize();
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        this.monitor = MONITORS.computeIfAbsent(file.toAbsolutePath().normalize(), k -> new Object());
+        this.offsets.add(0L);
+    }
+
+    /**
+     * Gets the file the ledger of the workspace denoted by root is kept in
+     *
+     * @param root The workspace directory
+     * @return The path of the ledger file
+     * @see WorkspaceIndex#nameFor(Path)
+     */
+    public static Path fileFor(Path root) {
+        return Paths.get(LEDGER_DIR, WorkspaceIndex.nameFor(root) + ".log");
+    }
+
+    /**
+     * Opens the ledger of the workspace denoted by root, cutting off any entry at
+     * its end that was not completely written
+     *
+     * @param root The workspace directory
+     * @return The workspace's ledger
+     * @throws IOException if the ledger exists but can not be read
+     */
+    public static LockLedger open(Path root) throws IOException {
+        LockLedger ledger = new LockLedger(root, fileFor(root));
+        ledger.locked(false, () -> null);
+        return ledger;
+    }
+
+    /**
+     * Gets the number of entries in the ledger
+     *
+     * @return The number of entries
+     * @throws IOException if the ledger can not be read
+     */
+    public int size() throws IOException {
+        return locked(false, this::entries);
+    }
+
+    /**
+     * Records a bulk operation at the end of the ledger
+     *
+     * @param lock           If the operation locked the files
+     * @param changed        The files the operation changed
+     * @param failed         The files the operation failed on
+     * @param changedFolders The folders the operation changed
+     * @param failedFolders  The folders the operation failed on
+     * @throws IOException if the entry can not be written
+     */
+    public void append(boolean lock, Collection<SrcFile> changed, Collection<SrcFile> failed,
+            Collection<Path> changedFolders, Collection<Path> failedFolders) throws IOException {
+        write(new Entry(System.currentTimeMillis(), lock, relative(changed), relative(failed), true,
+                relativeFolders(changedFolders), relativeFolders(failedFolders)));
+    }
+
+    /**
+     * Records a bulk operation whose changed files were not kept, such as one run
+     * on a stream of files, so the state it put the workspace in is known but it
+     * can not be undone
+     *
+     * @param lock   If the operation locked the files
+     * @param failed The files the operation failed on
+     * @throws IOException if the entry can not be written
+     */
+    public void appendState(boolean lock, Collection<SrcFile> failed) throws IOException {
+        write(new Entry(System.currentTimeMillis(), lock, Collections.emptyList(), relative(failed), false,
+                Collections.emptyList(), Collections.emptyList()));
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] frame = encode(entry);
+
+        locked(true, () -> {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long end = offsets.get(offsets.size() - 1);
+                ByteBuffer buf = ByteBuffer.wrap(frame);
+                while (buf.hasRemaining())
+                    ch.write(buf, end + buf.position());
+                ch.force(false);
+                offsets.add(end + frame.length);
+                fileKey = key();
+            }
+
+            if (entries() > MAX_ENTRIES)
+                trim();
+            return null;
+        });
+    }
+
+    /**
+     * Gets the last entry in the ledger
+     *
+     * @return The last entry, or {@code null} if the ledger is empty
+     * @throws IOException if the entry can not be read
+     */
+    public Entry last() throws IOException {
+        return locked(false, () -> {
+            if (entries() == 0)
+                return null;
+
+            long start = offsets.get(offsets.size() - 2);
+            long end = offsets.get(offsets.size() - 1);
+            ByteBuffer frame = ByteBuffer.allocate((int) (end - start));
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (frame.hasRemaining() && ch.read(frame, start + frame.position()) >= 0)
+                    ;
+            }
+
+            Entry e = decode(frame.array());
+            e.offset = start;
+            return e;
+        });
+    }
+
+    /**
+     * Removes an entry from the ledger if it is still the last one, which it is
+     * not if another run appended after it was read
+     *
+     * @param entry The entry, as returned by {@link #last()}
+     * @return {@code true} if the entry was removed
+     * @throws IOException if the ledger can not be shortened
+     */
+    public boolean dropLast(Entry entry) throws IOException {
+        return locked(true, () -> {
+            if (entries() == 0 || offsets.get(offsets.size() - 2) != entry.offset)
+                return false;
+
+            offsets.remove(offsets.size() - 1);
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(offsets.get(offsets.size() - 1));
+                ch.force(false);
+            }
+            return true;
+        });
+    }
+
+    private int entries() {
+        return offsets.size() - 1;
+    }
+
+    /**
+     * Runs work on the ledger holding its lock, once the entries written by other
+     * runs since it was last read have been caught up with. Reading a ledger that
+     * does not exist yet creates nothing.
+     */
+    private <T> T locked(boolean write, Locked<T> work) throws IOException {
+        synchronized (monitor) {
+            if (!write && !Files.exists(file)) {
+                reset();
+                return work.run();
+            }
+
+            Files.createDirectories(file.getParent());
+            try (FileChannel ch = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = ch.lock();
+                try {
+                    refresh();
+                    return work.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private void reset() {
+        offsets.clear();
+        offsets.add(0L);
+        fileKey = null;
+    }
+
+    /**
+     * Brings the offsets up to date with the file. The entries already known are
+     * kept as long as the file is the same one and their lengths still chain up,
+     * only what lies past them is read and checked, and an entry torn by a crash
+     * at the end is cut off.
+     */
+    private void refresh() throws IOException {
+        if (!Files.exists(file)) {
+            reset();
+            return;
+        }
+
+        Object key = key();
+        if (key == null || !key.equals(fileKey))
+            reset();
+        fileKey = key;
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            ByteBuffer header = ByteBuffer.allocate(4);
+
+            // keep the known entries that are still there, unchanged in length
+            int kept = 0;
+            while (kept < entries()) {
+                long start = offsets.get(kept);
+                long end = offsets.get(kept + 1);
+                header.clear();
+                if (end > size || ch.read(header, start) < 4 || start + 4 + header.getInt(0) + 8 != end)
+                    break;
+                kept++;
+            }
+            offsets.subList(kept + 1, offsets.size()).clear();
+
+            long pos = offsets.get(kept);
+            while (pos + 4 <= size) {
+                header.clear();
+                ch.read(header, pos);
+                int length = header.getInt(0);
+                if (length < 0 || pos + 4 + length + 8 > size)
+                    break;
+
+                ByteBuffer frame = ByteBuffer.allocate(length + 8);
+                ch.read(frame, pos + 4);
+                CRC32 crc = new CRC32();
+                crc.update(frame.array(), 0, length);
+                if (crc.getValue() != frame.getLong(length))
+                    break;
+
+                pos += 4 + length + 8;
+                offsets.add(pos);
+            }
+
+            // nobody else can be writing, so anything left is torn
+            if (pos < size) {
+                ch.truncate(pos);
+                ch.force(false);
+            }
+        }
+    }
+
+    private Object key() throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * Rewrites the ledger with only its last {@value #MAX_ENTRIES} entries,
+     * replacing the old file atomically
+     */
+    private void trim() throws IOException {
+        int drop = entries() - MAX_ENTRIES;
+        long from = offsets.get(drop);
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+
+        try {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                long count = in.size() - from;
+                for (long done = 0; done < count;)
+                    done += in.transferTo(from + done, count - done, out);
+                out.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        List<Long> kept = new ArrayList<>();
+        for (long offset : offsets.subList(drop, offsets.size()))
+            kept.add(offset - from);
+        offsets.clear();
+        offsets.addAll(kept);
+        fileKey = key();
+    }
+
+    private List<String> relative(Collection<SrcFile> files) {
+        List<String> paths = new ArrayList<>(files.size());
+        for (SrcFile f : files)
+            paths.add(root.relativize(f.getFile().toPath().toAbsolutePath().normalize()).toString());
+        return paths;
+    }
+
+    private List<String> relativeFolders(Collection<Path> folders) {
+        List<String> paths = new ArrayList<>(folders.size());
+        for (Path d : folders)
+            paths.add(root.relativize(d.toAbsolutePath().normalize()).toString());
+        return paths;
+    }
+
+    private static byte[] encode(Entry e) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.writeLong(e.time);
+            out.writeBoolean(e.lock);
+            writePaths(out, e.changed);
+            writePaths(out, e.failed);
+            out.writeBoolean(e.undoable);
+            writePaths(out, e.changedFolders);
+            writePaths(out, e.failedFolders);
+        }
+
+        byte[] content = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        ByteBuffer frame = ByteBuffer.allocate(4 + content.length + 8);
+        frame.putInt(content.length).put(content).putLong(crc.getValue());
+        return frame.array();
+    }
+
+    private static Entry decode(byte[] frame) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 4, frame.length - 12))) {
+            long time = in.readLong();
+            boolean lock = in.readBoolean();
+            List<String> changed = readPaths(in);
+            List<String> failed = readPaths(in);
+            // entries written before streamed ones were marked can all be undone,
+            // and those written before folders were recorded have none
+            boolean undoable = in.available() == 0 || in.readBoolean();
+            List<String> changedFolders = in.available() == 0 ? new ArrayList<>() : readPaths(in);
+            List<String> failedFolders = in.available() == 0 ? new ArrayList<>() : readPaths(in);
+            return new Entry(time, lock, changed, failed, undoable, changedFolders, failedFolders);
+        }
+    }
+
+    private static void writePaths(DataOutputStream out, List<String> paths) throws IOException {
+        out.writeInt(paths.size());
+        for (String p : paths)
+            out.writeUTF(p);
+    }
+
+    private static List<String> readPaths(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            paths.add(in.readUTF());
+        return paths;
+    }
+
+}
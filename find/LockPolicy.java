@@ -0,0 +1,309 @@
+package find;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * When a workspace should be locked without being asked to, run by a
+ * {@link LockScheduler}. A policy holds any number of lock windows, times of the
+ * week during which the workspace is kept locked, and an inactivity timeout
+ * after which the workspace is locked if no file in it was edited. Policies are
+ * read from the policies.dat file which sits next to the info.dat account file,
+ * one rule per line in one of the forms
+ *
+ * <pre>
+ * lock &lt;days&gt; &lt;HH:MM&gt;-&lt;HH:MM&gt; &lt;workspace&gt;
+ * idle &lt;minutes&gt; &lt;workspace&gt;
+ * </pre>
+ *
+ * where days is {@code *} for every day, or a comma separated list of days and
+ * ranges of days such as {@code mon-fri} or {@code sat,sun}. A window whose end
+ * is not after its start runs past midnight into the next day, and an end of
+ * 24:00 is midnight. Every rule naming the same workspace belongs to the same
+ * policy. Blank lines and lines starting with # are ignored.
+ */
+
+public class LockPolicy {
+
+    // Default location of the policies file, next to info.dat
+    public static final String POLICIES_FILE = "policies.dat";
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    /**
+     * A time of the week during which the workspace is kept locked, given by the
+     * days it starts on and its start and end in minutes past midnight
+     */
+    static class Window {
+        private final Set<DayOfWeek> days;
+        private final int start;
+        private final int end;
+
+        Window(Set<DayOfWeek> days, int start, int end) {
+            this.days = days;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Checks if a time falls in the window
+         */
+        boolean covers(ZonedDateTime t) {
+            int minute = t.getHour() * 60 + t.getMinute();
+            DayOfWeek day = t.getDayOfWeek();
+
+            if (start < end)
+                return days.contains(day) && minute >= start && minute < end;
+            return (days.contains(day) && minute >= start) || (days.contains(day.minus(1)) && minute < end);
+        }
+
+        /**
+         * Gets the first start or end of the window after a time
+         */
+        ZonedDateTime next(ZonedDateTime t) {
+            ZonedDateTime midnight = t.truncatedTo(ChronoUnit.DAYS);
+            ZonedDateTime best = null;
+
+            for (int d = -1; d <= 7; d++) {
+                ZonedDateTime day = midnight.plusDays(d);
+                if (!days.contains(day.getDayOfWeek()))
+                    continue;
+
+                ZonedDateTime open = day.plusMinutes(start);
+                ZonedDateTime close = day.plusMinutes(start < end ? end : end + MINUTES_PER_DAY);
+                for (ZonedDateTime c : List.of(open, close)) {
+                    if (c.isAfter(t) && (best == null || c.isBefore(best)))
+                        best = c;
+                }
+            }
+
+            return best;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %02d:%02d-%02d:%02d", days, start / 60, start % 60, end / 60, end % 60);
+        }
+    }
+
+    private final Path workspace;
+    private final List<Window> windows = new ArrayList<>();
+    private Duration idleTimeout;
+
+    /**
+     * Constructs an empty {@code LockPolicy}, which never locks its workspace
+     * until rules are added to it
+     *
+     * @param workspace The workspace directory
+     */
+    public LockPolicy(Path workspace) {
+        this.workspace = workspace.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Adds a lock window to the policy
+     *
+     * @param days  The days the window starts on
+     * @param start When the window starts
+     * @param end   When the window ends, the next day if it is not after start
+     * @return This policy
+     */
+    public LockPolicy lockDuring(Set<DayOfWeek> days, LocalTime start, LocalTime end) {
+        return lockDuring(days, start.getHour() * 60 + start.getMinute(), end.getHour() * 60 + end.getMinute());
+    }
+
+    private LockPolicy lockDuring(Set<DayOfWeek> days, int start, int end) {
+        if (days.isEmpty())
+            throw new IllegalArgumentException("A lock window needs at least one day");
+        windows.add(new Window(EnumSet.copyOf(days), start, end));
+        return this;
+    }
+
+    /**
+     * Sets how long the workspace may go without an edit before it is locked
+     *
+     * @param timeout The inactivity timeout, or {@code null} for none
+     * @return This policy
+     */
+    public LockPolicy lockWhenIdle(Duration timeout) {
+        if (timeout != null && (timeout.isNegative() || timeout.isZero()))
+            throw new IllegalArgumentException("The inactivity timeout must be positive");
+        this.idleTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Gets the workspace the policy applies to
+     *
+     * @return The workspace directory
+     */
+    public Path getWorkspace() {
+        return workspace;
+    }
+
+    /**
+     * Gets how long the workspace may go without an edit before it is locked
+     *
+     * @return The inactivity timeout, or {@code null} if there is none
+     */
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Checks if the policy has any lock windows
+     *
+     * @return {@code true} if the policy locks the workspace at set times
+     */
+    public boolean hasWindows() {
+        return !windows.isEmpty();
+    }
+
+    /**
+     * Checks if a time falls in any of the policy's lock windows
+     *
+     * @param t The time
+     * @return {@code true} if the workspace should be locked at that time
+     */
+    public boolean isLockTime(ZonedDateTime t) {
+        for (Window w : windows) {
+            if (w.covers(t))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the first time after t at which any lock window starts or ends
+     *
+     * @param t The time
+     * @return The next start or end of a window, or {@code null} if there are no
+     *         windows
+     */
+    public ZonedDateTime nextChange(ZonedDateTime t) {
+        ZonedDateTime best = null;
+        for (Window w : windows) {
+            ZonedDateTime next = w.next(t);
+            if (next != null && (best == null || next.isBefore(best)))
+                best = next;
+        }
+        return best;
+    }
+
+    /**
+     * Loads the policies from the policies.dat file in the current directory
+     *
+     * @return The loaded policies, none if there is no such file
+     * @throws IOException if the policies file exists but can not be read
+     */
+    public static Collection<LockPolicy> load() throws IOException {
+        return load(Paths.get(POLICIES_FILE));
+    }
+
+    /**
+     * Loads the policies from the given file
+     *
+     * @param file The policies file
+     * @return The loaded policies, none if the file does not exist
+     * @throws IOException if the policies file exists but can not be read
+     */
+    public static Collection<LockPolicy> load(Path file) throws IOException {
+        if (!Files.exists(file))
+            return List.of();
+        return parse(Files.readAllLines(file));
+    }
+
+    /**
+     * Reads a list of policy rules, merging the rules of each workspace into one
+     * policy
+     *
+     * @param lines The rule lines
+     * @return A policy for every workspace named, in the order first named
+     * @throws IllegalArgumentException if a line is not a valid rule
+     */
+    public static Collection<LockPolicy> parse(List<String> lines) {
+        Map<Path, LockPolicy> policies = new LinkedHashMap<>();
+
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] parts = line.split("\\s+", line.startsWith("lock") ? 4 : 3);
+            try {
+                if (parts[0].equals("lock") && parts.length == 4) {
+                    String[] times = parts[2].split("-");
+                    if (times.length != 2)
+                        throw new IllegalArgumentException("Invalid lock policy: " + line);
+                    policy(policies, parts[3]).lockDuring(days(parts[1]), minutes(times[0]), minutes(times[1]));
+                } else if (parts[0].equals("idle") && parts.length == 3)
+                    policy(policies, parts[2]).lockWhenIdle(Duration.ofMinutes(Long.parseLong(parts[1])));
+                else
+                    throw new IllegalArgumentException("Invalid lock policy: " + line);
+            } catch (NumberFormatException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid lock policy: " + line, e);
+            }
+        }
+
+        return policies.values();
+    }
+
+    private static LockPolicy policy(Map<Path, LockPolicy> policies, String dir) {
+        Path p = Paths.get(dir).toAbsolutePath().normalize();
+        return policies.computeIfAbsent(p, LockPolicy::new);
+    }
+
+    private static int minutes(String time) {
+        if (time.equals("24:00"))
+            return MINUTES_PER_DAY;
+        LocalTime t = LocalTime.parse(time);
+        return t.getHour() * 60 + t.getMinute();
+    }
+
+    private static Set<DayOfWeek> days(String spec) {
+        if (spec.equals("*"))
+            return EnumSet.allOf(DayOfWeek.class);
+
+        Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+        for (String part : spec.split(",")) {
+            String[] range = part.split("-");
+            DayOfWeek from = day(range[0]);
+            DayOfWeek to = range.length > 1 ? day(range[1]) : from;
+            for (DayOfWeek d = from;; d = d.plus(1)) {
+                days.add(d);
+                if (d == to)
+                    break;
+            }
+        }
+        return days;
+    }
+
+    private static DayOfWeek day(String name) {
+        for (DayOfWeek d : DayOfWeek.values()) {
+            if (d.name().substring(0, 3).equalsIgnoreCase(name))
+                return d;
+        }
+        throw new IllegalArgumentException("Unknown day: " + name);
+    }
+
+    @Override
+    public String toString() {
+        return workspace + ": lock during " + windows + (idleTimeout == null ? "" : ", when idle for " + idleTimeout);
+    }
+
+}
@@ -0,0 +1,243 @@
+package find;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@link LockPolicy} of every workspace that has one, locking it when a
+ * lock window starts or it has gone too long without an edit, and unlocking it
+ * when a window it was locked for ends. Every policy keeps at most one pending
+ * timer per kind of rule on a single shared timer thread, so thousands of
+ * policies cost no more threads than one, and each timer is only set again when
+ * it fires rather than on every edit. The inactivity timer reads the time of the
+ * last edit seen in live mode, see {@link FileSearcher#getLastEdit()}, and if
+ * the workspace was edited since it was set it is simply set again for the rest
+ * of the timeout. The locking and unlocking itself runs on worker threads so a
+ * large workspace never holds up the timers of the others.
+ */
+
+public class LockScheduler implements AutoCloseable {
+
+    /**
+     * Told every time the scheduler locks or unlocks a workspace
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * Called once a workspace has been locked or unlocked
+         *
+         * @param workspace The workspace directory
+         * @param lock      If the workspace was locked
+         * @param reason    Why, either window or idle
+         * @param result    The {@link BulkResult} of the operation
+         */
+        void changed(Path workspace, boolean lock, String reason, BulkResult result);
+    }
+
+    /**
+     * A policy being run, with its pending timers
+     */
+    private class Entry {
+        final LockPolicy policy;
+        final FileSearcher fs;
+        ScheduledFuture<?> window;
+        ScheduledFuture<?> idle;
+        boolean lockedByWindow;
+        boolean removed;
+
+        Entry(LockPolicy policy, FileSearcher fs) {
+            this.policy = policy;
+            this.fs = fs;
+        }
+
+        /**
+         * Locks or unlocks the workspace for the window it is in now, and sets the
+         * timer for the next start or end of a window
+         */
+        synchronized void checkWindow() {
+            if (removed)
+                return;
+
+            ZonedDateTime now = ZonedDateTime.now();
+            if (policy.isLockTime(now)) {
+                if (!fs.isLocked()) {
+                    run(this, true, "window");
+                    lockedByWindow = true;
+                }
+            } else if (lockedByWindow) {
+                if (fs.isLocked())
+                    run(this, false, "window");
+                lockedByWindow = false;
+            }
+
+            ZonedDateTime next = policy.nextChange(now);
+            if (next != null)
+                window = schedule(this::checkWindow, Duration.between(now, next).toMillis());
+        }
+
+        /**
+         * Locks the workspace if it has gone without an edit for the whole
+         * timeout, and sets the timer for when it next could have
+         */
+        synchronized void checkIdle() {
+            if (removed)
+                return;
+
+            long timeout = policy.getIdleTimeout().toMillis();
+            long idleFor = System.currentTimeMillis() - fs.getLastEdit();
+            long delay = timeout - idleFor;
+
+            if (fs.isLocked())
+                delay = timeout;
+            else if (delay <= 0) {
+                run(this, true, "idle");
+                delay = timeout;
+            }
+
+            idle = schedule(this::checkIdle, delay);
+        }
+
+        synchronized void cancel() {
+            removed = true;
+            if (window != null)
+                window.cancel(false);
+            if (idle != null)
+                idle.cancel(false);
+        }
+    }
+
+    private final WorkspaceRegistry registry;
+    private final BulkExecutor executor;
+    private final Listener listener;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "lock-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "lock-scheduler-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructs a {@code LockScheduler} running policies on the workspaces of a
+     * registry
+     *
+     * @param registry The registry the workspaces are added to
+     * @param executor The {@code BulkExecutor} workspaces are locked and unlocked
+     *                 on
+     * @param listener Told of every lock and unlock, or {@code null}
+     */
+    public LockScheduler(WorkspaceRegistry registry, BulkExecutor executor, Listener listener) {
+        this.registry = registry;
+        this.executor = executor;
+        this.listener = listener;
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Starts running a policy, in place of any policy its workspace had. The
+     * workspace is added to the registry, and put in live mode if the policy has
+     * an inactivity timeout so edits can be seen. If the workspace is in a lock
+     * window it is locked straight away.
+     *
+     * @param policy The policy
+     * @throws IOException if the workspace can not be searched or watched
+     */
+    public void add(LockPolicy policy) throws IOException {
+        FileSearcher fs = registry.add(policy.getWorkspace().toFile());
+        if (policy.getIdleTimeout() != null)
+            fs.startWatching(true);
+
+        Entry entry = new Entry(policy, fs);
+        Entry old = entries.put(policy.getWorkspace(), entry);
+        if (old != null)
+            old.cancel();
+
+        synchronized (entry) {
+            if (policy.hasWindows())
+                entry.window = schedule(entry::checkWindow, 0);
+            if (policy.getIdleTimeout() != null)
+                entry.idle = schedule(entry::checkIdle, policy.getIdleTimeout().toMillis());
+        }
+    }
+
+    /**
+     * Stops running the policy of a workspace, leaving it as it is
+     *
+     * @param workspace The workspace directory
+     * @return {@code true} if the workspace had a policy
+     */
+    public boolean remove(Path workspace) {
+        Entry entry = entries.remove(workspace.toAbsolutePath().normalize());
+        if (entry == null)
+            return false;
+        entry.cancel();
+        return true;
+    }
+
+    /**
+     * Gets the number of policies being run
+     *
+     * @return The number of policies
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of timers waiting to fire
+     *
+     * @return The number of pending timers
+     */
+    public int pending() {
+        return timer.getQueue().size();
+    }
+
+    /**
+     * Sets a timer which hands the task to a worker thread when it fires
+     */
+    private ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return timer.schedule(() -> {
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the scheduler was closed
+            }
+        }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private void run(Entry entry, boolean lock, String reason) {
+        BulkResult result = lock ? entry.fs.lockAll(executor) : entry.fs.unlockAll(executor);
+        if (listener != null)
+            listener.changed(entry.policy.getWorkspace(), lock, reason, result);
+    }
+
+    /**
+     * Cancels every timer and stops the timer and worker threads
+     */
+    @Override
+    public void close() {
+        for (Entry e : entries.values())
+            e.cancel();
+        entries.clear();
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+}
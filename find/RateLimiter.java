@@ -0,0 +1,164 @@
+package find;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import metrics.LatencyHistogram;
+
+/**
+ * Paces the per-file calls of a {@link BulkExecutor} so a bulk operation on
+ * shared storage, such as an NFS or SMB mount, does not flood its metadata
+ * server. A token bucket holds calls to at most the current rate per second,
+ * allowing a burst of a tenth of a second's worth. If a latency target is set
+ * the rate is adjusted in AIMD fashion: the latency of every call is recorded
+ * in a {@link LatencyHistogram}, and once per window of calls the rate is cut
+ * in half if the p99 went over the target, or otherwise raised by a twentieth
+ * of the most it may be, so the operation runs as fast as the storage allows
+ * without slowing everyone else on it down. Limiters are configured by the
+ * wfs.rate.limit system property, the most calls per second, and
+ * wfs.rate.target, the p99 latency target in milliseconds.
+ */
+
+public class RateLimiter {
+
+    // Fewest calls per second the rate is ever cut to
+    private static final double MIN_RATE = 1.0;
+
+    // Calls per window, a window also ends after a second with enough calls
+    private static final int WINDOW_CALLS = 128;
+    private static final int MIN_WINDOW_CALLS = 10;
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double maxRate;
+    private final long targetNanos;
+
+    // Guarded by this
+    private double rate;
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    private final LatencyHistogram window = new LatencyHistogram();
+    private final AtomicLong windowCalls = new AtomicLong();
+    private volatile long windowStart = System.nanoTime();
+    private volatile long lastP99;
+
+    /**
+     * Constructs a {@code RateLimiter} starting at its most calls per second
+     *
+     * @param maxRate     The most calls per second
+     * @param targetNanos The p99 latency target in nanoseconds, or 0 to keep the
+     *                    rate fixed
+     */
+    public RateLimiter(double maxRate, long targetNanos) {
+        if (!(maxRate >= MIN_RATE))
+            throw new IllegalArgumentException("The rate must be at least " + MIN_RATE + " per second");
+        this.maxRate = maxRate;
+        this.targetNanos = targetNanos;
+        this.rate = maxRate;
+        this.tokens = burst();
+    }
+
+    /**
+     * Gets a limiter configured by the wfs.rate.limit and wfs.rate.target system
+     * properties
+     *
+     * @return The limiter, or {@code null} if no rate limit is set
+     */
+    public static RateLimiter fromProperties() {
+        String limit = System.getProperty("wfs.rate.limit");
+        if (limit == null)
+            return null;
+
+        long target = TimeUnit.MILLISECONDS.toNanos(Long.getLong("wfs.rate.target", 0));
+        return new RateLimiter(Double.parseDouble(limit), target);
+    }
+
+    /**
+     * Waits until the next call may be made
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst(), tokens + (now - refilled) * rate / 1e9);
+            refilled = now;
+            tokens -= 1;
+            wait = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Records how long a call took, and adjusts the rate once a window of calls
+     * is complete if there is a latency target
+     *
+     * @param nanos The latency of the call in nanoseconds
+     */
+    public void record(long nanos) {
+        if (targetNanos <= 0)
+            return;
+
+        window.record(nanos);
+        long calls = windowCalls.incrementAndGet();
+        if (calls < MIN_WINDOW_CALLS || (calls < WINDOW_CALLS && System.nanoTime() - windowStart < WINDOW_NANOS))
+            return;
+
+        synchronized (this) {
+            // another call closed the window first
+            if (windowCalls.get() < MIN_WINDOW_CALLS)
+                return;
+
+            long p99 = window.percentile(99);
+            window.reset();
+            windowCalls.set(0);
+            windowStart = System.nanoTime();
+            lastP99 = p99;
+
+            if (p99 > targetNanos)
+                rate = Math.max(MIN_RATE, rate / 2);
+            else
+                rate = Math.min(maxRate, rate + maxRate / 20);
+        }
+    }
+
+    /**
+     * Gets how many calls per second are currently allowed
+     *
+     * @return The current rate
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Gets the most calls per second the rate is raised to
+     *
+     * @return The maximum rate
+     */
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * Gets the p99 latency of the last complete window of calls
+     *
+     * @return The latency in nanoseconds, or 0 if no window has completed
+     */
+    public long getLastP99() {
+        return lastP99;
+    }
+
+    private double burst() {
+        return Math.max(1, rate / 10);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.0f of at most %.0f calls/s, last p99 %d us", getRate(), maxRate, lastP99 / 1000);
+    }
+
+}
@@ -0,0 +1,181 @@
+package find;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled set of include and exclude rules used by {@link WorkspaceWalker} to
+ * decide which files are source files and which folders are never descended
+ * into. Rules are read from the rules.dat file which sits next to the info.dat
+ * account file, one rule per line in the form {@code include <pattern>} or
+ * {@code exclude <pattern>}. A pattern is anything accepted by
+ * {@link java.nio.file.FileSystem#getPathMatcher(String)}, a pattern without a
+ * {@code glob:} or {@code regex:} prefix is treated as a glob. Each pattern is
+ * tested against both the path relative to the workspace and the bare file
+ * name, so {@code exclude target} skips every target folder at any depth.
+ * Blank lines and lines starting with # are ignored.
+ */
+
+public class ScanRules {
+
+    // Default location of the rules file, next to info.dat
+    public static final String RULES_FILE = "rules.dat";
+
+    private static final List<String> DEFAULT_RULES = List.of(
+            "exclude glob:.*",
+            "exclude School (Past)",
+            "exclude LockerV2",
+            "exclude target",
+            "exclude node_modules");
+
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final String fingerprint;
+
+    /**
+     * Constructs a {@code ScanRules} from already compiled matchers
+     *
+     * @param includes Matchers a file must satisfy one of to be a source file, if
+     *                 empty every file is a source file
+     * @param excludes Matchers that prune any file or folder they match
+     */
+    public ScanRules(List<PathMatcher> includes, List<PathMatcher> excludes) {
+        this(includes, excludes, null);
+    }
+
+    private ScanRules(List<PathMatcher> includes, List<PathMatcher> excludes, String fingerprint) {
+        this.includes = List.copyOf(includes);
+        this.excludes = List.copyOf(excludes);
+        this.fingerprint = fingerprint != null ? fingerprint
+                : "matchers@" + Integer.toHexString(System.identityHashCode(this));
+    }
+
+    /**
+     * Gets the rules built into the application, which skip hidden folders such
+     * as .metadata and .git, the School (Past) and LockerV2 projects, and build
+     * output folders.
+     *
+     * @return The default {@code ScanRules}
+     */
+    public static ScanRules defaults() {
+        return parse(DEFAULT_RULES);
+    }
+
+    /**
+     * Loads the rules from the rules.dat file in the current directory, falling
+     * back to {@link #defaults()} if there is no such file
+     *
+     * @return The loaded {@code ScanRules}
+     * @throws IOException if the rules file exists but can not be read
+     */
+    public static ScanRules load() throws IOException {
+        return load(Paths.get(RULES_FILE));
+    }
+
+    /**
+     * Loads the rules from the given file, falling back to {@link #defaults()} if
+     * it does not exist
+     *
+     * @param file The rules file
+     * @return The loaded {@code ScanRules}
+     * @throws IOException if the rules file exists but can not be read
+     */
+    public static ScanRules load(Path file) throws IOException {
+        if (!Files.exists(file))
+            return defaults();
+        return parse(Files.readAllLines(file));
+    }
+
+    /**
+     * Compiles a list of rule lines into a {@code ScanRules}
+     *
+     * @param lines The rule lines
+     * @return The compiled {@code ScanRules}
+     * @throws IllegalArgumentException if a line is not a valid rule
+     */
+    public static ScanRules parse(List<String> lines) {
+        List<PathMatcher> includes = new ArrayList<>();
+        List<PathMatcher> excludes = new ArrayList<>();
+        StringBuilder fingerprint = new StringBuilder();
+
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            int split = line.indexOf(' ');
+            if (split < 0)
+                throw new IllegalArgumentException("Invalid scan rule: " + line);
+
+            String kind = line.substring(0, split);
+            String pattern = line.substring(split + 1).trim();
+            if (!pattern.startsWith("glob:") && !pattern.startsWith("regex:"))
+                pattern = "glob:" + pattern;
+
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher(pattern);
+            fingerprint.append(kind).append(' ').append(pattern).append('\n');
+
+            switch (kind) {
+                case "include":
+                    includes.add(matcher);
+                    break;
+                case "exclude":
+                    excludes.add(matcher);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid scan rule: " + line);
+            }
+        }
+
+        return new ScanRules(includes, excludes, fingerprint.toString());
+    }
+
+    /**
+     * Gets a key which is equal for two {@code ScanRules} parsed from the same
+     * rules, used to tell if a {@link WorkspaceIndex} was built with these rules.
+     * Rules built from matchers directly never match any other rules.
+     *
+     * @return The fingerprint of these rules
+     */
+    public String fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Checks if a file or folder is excluded, in which case a folder is pruned
+     * without ever being listed
+     *
+     * @param relative The path relative to the workspace
+     * @return {@code true} if any exclude rule matches, {@code false} otherwise
+     */
+    public boolean isExcluded(Path relative) {
+        return matches(excludes, relative);
+    }
+
+    /**
+     * Checks if a file that is not excluded counts as a source file
+     *
+     * @param relative The path relative to the workspace
+     * @return {@code true} if there are no include rules or any of them matches,
+     *         {@code false} otherwise
+     */
+    public boolean isIncluded(Path relative) {
+        return includes.isEmpty() || matches(includes, relative);
+    }
+
+    private static boolean matches(List<PathMatcher> matchers, Path relative) {
+        Path name = relative.getFileName();
+        for (PathMatcher m : matchers) {
+            if (m.matches(relative) || (name != null && m.matches(name)))
+                return true;
+        }
+        return false;
+    }
+
+}
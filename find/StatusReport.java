@@ -0,0 +1,139 @@
+package find;
+
+import attributes.SrcFile;
+import metrics.OperationMetrics;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock status of every source file in a workspace, as read from disk by
+ * {@link FileSearcher#status(boolean)}. Counts the files that are locked,
+ * unlocked and missing, and lists every file that is missing or has drifted,
+ * that is every file whose lock state is not the one the workspace as a whole
+ * is expected to be in. Safe to be filled in from many threads at once.
+ */
+
+public class StatusReport {
+
+    private final boolean expectLocked;
+
+    private final LongAdder locked = new LongAdder();
+    private final LongAdder unlocked = new LongAdder();
+    private final Queue<SrcFile> missing = new ConcurrentLinkedQueue<>();
+    private final Queue<SrcFile> drifted = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructs an empty {@code StatusReport}
+     *
+     * @param expectLocked If every file is expected to be locked, otherwise every
+     *                     file is expected to be unlocked
+     */
+    StatusReport(boolean expectLocked) {
+        this.expectLocked = expectLocked;
+    }
+
+    /**
+     * Reads the lock state of a single file and records it
+     *
+     * @param f The file to check
+     */
+    void check(SrcFile f) {
+        OperationMetrics.get().statusChecked();
+        boolean isLocked;
+        try {
+            isLocked = f.refreshState();
+        } catch (NoSuchFileException e) {
+            missing.add(f);
+            return;
+        } catch (IOException e) {
+            drifted.add(f);
+            return;
+        }
+
+        if (isLocked)
+            locked.increment();
+        else
+            unlocked.increment();
+
+        if (isLocked != expectLocked)
+            drifted.add(f);
+    }
+
+    /**
+     * Records files as locked without reading them, used for files in a locked
+     * folder
+     *
+     * @param count The number of files
+     */
+    void countLocked(int count) {
+        locked.add(count);
+    }
+
+    /**
+     * Checks if every file exists and is in the expected state
+     *
+     * @return {@code true} if no file is missing or has drifted
+     */
+    public boolean isClean() {
+        return missing.isEmpty() && drifted.isEmpty();
+    }
+
+    /**
+     * Checks if the report was made expecting every file to be locked
+     *
+     * @return {@code true} if files were expected to be locked
+     */
+    public boolean isExpectLocked() {
+        return expectLocked;
+    }
+
+    /**
+     * Gets the number of files that are locked
+     *
+     * @return The number of locked files
+     */
+    public long getLocked() {
+        return locked.sum();
+    }
+
+    /**
+     * Gets the number of files that are unlocked
+     *
+     * @return The number of unlocked files
+     */
+    public long getUnlocked() {
+        return unlocked.sum();
+    }
+
+    /**
+     * Gets every file that no longer exists
+     *
+     * @return A {@code List} of the missing files
+     */
+    public List<SrcFile> getMissing() {
+        return new ArrayList<>(missing);
+    }
+
+    /**
+     * Gets every file that is not in the expected state, or whose state could not
+     * be read
+     *
+     * @return A {@code List} of the drifted files
+     */
+    public List<SrcFile> getDrifted() {
+        return new ArrayList<>(drifted);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d locked, %d unlocked, %d missing, %d drifted", getLocked(), getUnlocked(),
+                missing.size(), drifted.size());
+    }
+
+}
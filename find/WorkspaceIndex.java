@@ -0,0 +1,266 @@
+package find;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On disk index of a single workspace, kept in the index folder next to the
+ * info.dat file so that restarting the application or changing back to a
+ * workspace does not need a full rescan. For every folder under the
+ * workspace's src folders it stores the folder's modified time and the names
+ * of its sub folders and of the source files in it. {@link WorkspaceWalker}
+ * only lists folders whose modified time no longer matches the index, every
+ * other folder's listing is served straight from it. Nothing about the files
+ * themselves is kept, as a change to a file's permissions or contents does not
+ * touch its folder's modified time, so every file is still stat'ed for its
+ * current attributes and lock state. The index is written in a compact binary form with
+ * {@code DataOutputStream} and replaced atomically.
+ */
+
+public class WorkspaceIndex {
+
+    // Folder the index files are kept in, next to info.dat
+    public static final String INDEX_DIR = "index";
+
+    private static final int MAGIC = 0x57465349;
+    private static final int VERSION = 2;
+
+    /*
+     * Folders modified this close to when the index was written may have changed
+     * again within the same timestamp, so they are always rescanned
+     */
+    private static final long RACY_WINDOW = 2_000_000_000L;
+
+    /**
+     * Indexed listing of a single folder, the names of its sub folders and of the
+     * source files directly in it
+     */
+    static class DirRecord {
+        final long lastModified;
+        final List<String> dirs;
+        final List<String> files;
+
+        DirRecord(long lastModified, List<String> dirs, List<String> files) {
+            this.lastModified = lastModified;
+            this.dirs = dirs;
+            this.files = files;
+        }
+    }
+
+    private final Path root;
+    private final String rulesKey;
+    private final long savedAt;
+    private final Map<String, DirRecord> dirs = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs an empty {@code WorkspaceIndex} for the workspace denoted by root
+     *
+     * @param root  The workspace directory
+     * @param rules The rules the workspace is scanned with
+     */
+    public WorkspaceIndex(Path root, ScanRules rules) {
+        this(root, rules.fingerprint(), 0);
+    }
+
+    private WorkspaceIndex(Path root, String rulesKey, long savedAt) {
+        this.root = root.toAbsolutePath().normalize();
+        this.rulesKey = rulesKey;
+        this.savedAt = savedAt;
+    }
+
+    /**
+     * Gets the file the index for the workspace denoted by root is kept in. The
+     * name is derived from the workspace's absolute path so that every workspace
+     * gets its own index.
+     *
+     * @param root The workspace directory
+     * @return The path of the index file
+     * @see #nameFor(Path)
+     */
+    public static Path fileFor(Path root) {
+        return Paths.get(INDEX_DIR, nameFor(root) + ".idx");
+    }
+
+    /**
+     * Gets the name every file kept for the workspace denoted by root is stored
+     * under, in the index, ledger and digests folders. It is the SHA-256 digest of
+     * the workspace's normalized absolute path, so two workspaces never share a
+     * file the way they could with a 32 bit hash of it.
+     *
+     * @param root The workspace directory
+     * @return The workspace's file name, without an extension
+     */
+    static String nameFor(Path root) {
+        String key = root.toAbsolutePath().normalize().toString();
+        try {
+            return HexFormat.of().formatHex(
+                    MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads the index of the workspace denoted by root. An index that is missing,
+     * unreadable, of a different workspace or built with different rules is
+     * ignored and an empty one is returned in its place, as the worst case is a
+     * full rescan.
+     *
+     * @param root  The workspace directory
+     * @param rules The rules the workspace is scanned with
+     * @return The loaded index, or an empty one
+     */
+    public static WorkspaceIndex load(Path root, ScanRules rules) {
+        WorkspaceIndex empty = new WorkspaceIndex(root, rules);
+        Path file = fileFor(root);
+
+        if (!Files.isRegularFile(file))
+            return empty;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return empty;
+
+            String path = in.readUTF();
+            String rulesKey = in.readUTF();
+            long savedAt = in.readLong();
+
+            if (!path.equals(empty.root.toString()) || !rulesKey.equals(empty.rulesKey))
+                return empty;
+
+            WorkspaceIndex index = new WorkspaceIndex(root, rulesKey, savedAt);
+
+            int dirCount = in.readInt();
+            for (int i = 0; i < dirCount; i++) {
+                String rel = in.readUTF();
+                long lastModified = in.readLong();
+
+                int subCount = in.readInt();
+                List<String> subs = new ArrayList<>(subCount);
+                for (int j = 0; j < subCount; j++)
+                    subs.add(in.readUTF());
+
+                int fileCount = in.readInt();
+                List<String> files = new ArrayList<>(fileCount);
+                for (int j = 0; j < fileCount; j++)
+                    files.add(in.readUTF());
+
+                index.dirs.put(rel, new DirRecord(lastModified, subs, files));
+            }
+
+            return index;
+        } catch (IOException e) {
+            return empty;
+        }
+    }
+
+    /**
+     * Writes the index to its file, first to a temporary file which then replaces
+     * the old index so a crash never leaves a half written one behind
+     *
+     * @throws IOException if the index can not be written
+     */
+    public void save() throws IOException {
+        Path file = fileFor(root);
+        Files.createDirectories(file.getParent());
+        // a temporary file of its own, as another run may save the same index
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(root.toString());
+                out.writeUTF(rulesKey);
+                out.writeLong(System.currentTimeMillis() * 1_000_000L);
+
+                out.writeInt(dirs.size());
+                for (Map.Entry<String, DirRecord> e : dirs.entrySet()) {
+                    DirRecord r = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(r.lastModified);
+
+                    out.writeInt(r.dirs.size());
+                    for (String d : r.dirs)
+                        out.writeUTF(d);
+
+                    out.writeInt(r.files.size());
+                    for (String f : r.files)
+                        out.writeUTF(f);
+                }
+            }
+
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Gets the indexed listing of a folder if it can still be trusted, which is
+     * when its modified time is unchanged and it was not modified just before
+     * the index was written
+     *
+     * @param dir          The folder
+     * @param lastModified The folder's current modified time in nanoseconds
+     * @return The record of the folder, or {@code null} if it must be rescanned
+     */
+    DirRecord lookup(Path dir, long lastModified) {
+        DirRecord r = dirs.get(key(dir));
+        if (r == null || r.lastModified != lastModified || lastModified >= savedAt - RACY_WINDOW)
+            return null;
+        return r;
+    }
+
+    /**
+     * Records the state of a folder
+     *
+     * @param dir    The folder
+     * @param record The folder's record
+     */
+    void put(Path dir, DirRecord record) {
+        dirs.put(key(dir), record);
+    }
+
+    /**
+     * Gets the number of folders in the index
+     *
+     * @return The number of indexed folders
+     */
+    public int size() {
+        return dirs.size();
+    }
+
+    /**
+     * Gets every folder in the index
+     *
+     * @return The absolute paths of the indexed folders
+     */
+    public List<Path> directories() {
+        List<Path> all = new ArrayList<>(dirs.size());
+        for (String rel : dirs.keySet())
+            all.add(root.resolve(rel));
+        return all;
+    }
+
+    private String key(Path dir) {
+        return root.relativize(dir.toAbsolutePath().normalize()).toString();
+    }
+
+}
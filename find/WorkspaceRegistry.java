@@ -0,0 +1,200 @@
+package find;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+
+/**
+ * Holds the {@link FileSearcher} of many workspaces at once, each with its own
+ * index and status, so that switching between workspaces never searches one
+ * again and several of them can be locked, unlocked or checked together. An
+ * operation over several workspaces runs on every one of them at the same time
+ * on one shared {@link BulkExecutor}, with each workspace given an equal share
+ * of its calls in flight, so a huge workspace can not starve the small ones
+ * which finish as quickly as they would on their own.
+ */
+
+public class WorkspaceRegistry implements AutoCloseable {
+
+    private final Map<Path, FileSearcher> workspaces = new ConcurrentHashMap<>();
+    private final BulkExecutor executor;
+
+    // Threads that hand each workspace's files to the shared executor
+    private final ExecutorService coordinators = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "registry-coordinator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructs an empty {@code WorkspaceRegistry} whose operations run on the
+     * given executor
+     *
+     * @param executor The {@code BulkExecutor} shared by every workspace
+     */
+    public WorkspaceRegistry(BulkExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the {@code FileSearcher} of a workspace, searching the workspace the
+     * first time it is added
+     *
+     * @param dir The workspace directory
+     * @return The workspace's {@code FileSearcher}
+     * @throws IOException if the workspace can not be searched
+     */
+    public FileSearcher add(File dir) throws IOException {
+        try {
+            return workspaces.computeIfAbsent(key(dir.toPath()), p -> {
+                try {
+                    return new FileSearcher(p.toFile());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Gets the {@code FileSearcher} of a workspace that has been added
+     *
+     * @param dir The workspace directory
+     * @return The workspace's {@code FileSearcher}, or {@code null} if it has not
+     *         been added
+     */
+    public FileSearcher get(Path dir) {
+        return workspaces.get(key(dir));
+    }
+
+    /**
+     * Removes a workspace, turning off its live mode
+     *
+     * @param dir The workspace directory
+     * @return The removed {@code FileSearcher}, or {@code null} if it was not
+     *         added
+     */
+    public FileSearcher remove(Path dir) {
+        FileSearcher fs = workspaces.remove(key(dir));
+        if (fs != null)
+            fs.stopWatching();
+        return fs;
+    }
+
+    /**
+     * Gets the executor every operation of the registry runs on
+     *
+     * @return The shared {@code BulkExecutor}
+     */
+    public BulkExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Gets every workspace that has been added
+     *
+     * @return The workspace directories in sorted order
+     */
+    public Set<Path> paths() {
+        return new TreeSet<>(workspaces.keySet());
+    }
+
+    /**
+     * Locks every file of the given workspaces at the same time
+     *
+     * @param dirs The workspaces to lock, or {@code null} for every workspace
+     * @return The result of each workspace, in the order they were given
+     */
+    public Map<Path, BulkResult> lockAll(Collection<Path> dirs) {
+        return across(dirs, FileSearcher::lockAll);
+    }
+
+    /**
+     * Unlocks every file of the given workspaces at the same time
+     *
+     * @param dirs The workspaces to unlock, or {@code null} for every workspace
+     * @return The result of each workspace, in the order they were given
+     */
+    public Map<Path, BulkResult> unlockAll(Collection<Path> dirs) {
+        return across(dirs, FileSearcher::unlockAll);
+    }
+
+    /**
+     * Checks the lock status of the given workspaces at the same time, each
+     * against the state it was itself last locked or unlocked into
+     *
+     * @param dirs The workspaces to check, or {@code null} for every workspace
+     * @return The report of each workspace, in the order they were given
+     * @see FileSearcher#status(BulkExecutor)
+     */
+    public Map<Path, StatusReport> status(Collection<Path> dirs) {
+        return across(dirs, FileSearcher::status);
+    }
+
+    /**
+     * Runs an operation on each of the given workspaces at the same time, every
+     * one of them on an equal share of the executor
+     *
+     * @param dirs The workspaces, or {@code null} for every workspace
+     * @param op   The operation to run on a workspace with its share
+     * @return The result of each workspace, in the order they were given
+     * @throws IllegalArgumentException if a workspace has not been added
+     */
+    private <R> Map<Path, R> across(Collection<Path> dirs, BiFunction<FileSearcher, BulkExecutor, R> op) {
+        List<Path> keys = new ArrayList<>();
+        for (Path p : dirs == null ? paths() : dirs) {
+            Path key = key(p);
+            if (!workspaces.containsKey(key))
+                throw new IllegalArgumentException("Workspace has not been added: " + p);
+            keys.add(key);
+        }
+
+        Map<Path, R> results = new LinkedHashMap<>();
+        if (keys.isEmpty())
+            return results;
+
+        BulkExecutor share = executor.share(Math.max(1, executor.getParallelism() / keys.size()));
+
+        List<CompletableFuture<R>> futures = new ArrayList<>();
+        for (Path key : keys) {
+            FileSearcher fs = workspaces.get(key);
+            futures.add(CompletableFuture.supplyAsync(() -> op.apply(fs, share), coordinators));
+        }
+
+        for (int i = 0; i < keys.size(); i++)
+            results.put(keys.get(i), futures.get(i).join());
+
+        return results;
+    }
+
+    /**
+     * Turns off live mode of every workspace and stops the coordinator threads,
+     * the shared executor is left running
+     */
+    @Override
+    public void close() {
+        for (FileSearcher fs : workspaces.values())
+            fs.stopWatching();
+        coordinators.shutdown();
+    }
+
+    private static Path key(Path dir) {
+        return dir.toAbsolutePath().normalize();
+    }
+
+}
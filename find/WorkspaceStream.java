@@ -0,0 +1,152 @@
+package find;
+
+import attributes.SrcFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily produced sequence of the source files of a workspace, for when a
+ * workspace is too large to hold every file in memory. Unlike
+ * {@link WorkspaceWalker} nothing is collected, the src folders are walked
+ * depth first one {@link java.nio.file.DirectoryStream} at a time and each
+ * {@code SrcFile} is only created when it is asked for, so memory use depends
+ * on how deep the tree is rather than how many files it holds. The same
+ * {@link ScanRules} are applied, and the permissions of each file are read in
+ * the same call as its other attributes.
+ */
+
+public class WorkspaceStream implements Iterator<SrcFile>, AutoCloseable {
+
+    private final Path root;
+    private final ScanRules rules;
+    private final boolean posix;
+
+    // Folders still to be walked, and the open listings of the current path
+    private final Deque<Path> pending = new ArrayDeque<>();
+    private final Deque<DirectoryStream<Path>> open = new ArrayDeque<>();
+    private final Deque<Iterator<Path>> listings = new ArrayDeque<>();
+
+    private SrcFile next;
+
+    private WorkspaceStream(Path root, ScanRules rules) {
+        this.root = root;
+        this.rules = rules;
+        this.posix = root.getFileSystem().supportedFileAttributeViews().contains("posix");
+        this.pending.addAll(WorkspaceWalker.sourceRoots(root, rules));
+    }
+
+    /**
+     * Gets the source files of a workspace as a lazy {@code Stream}, which must be
+     * closed to release any folder listings still open
+     *
+     * @param root  The workspace directory
+     * @param rules The rules deciding which files and folders are scanned
+     * @return A {@code Stream} of the workspace's source files
+     */
+    public static Stream<SrcFile> files(Path root, ScanRules rules) {
+        WorkspaceStream it = new WorkspaceStream(root, rules);
+        return StreamSupport
+                .stream(Spliterators.spliteratorUnknownSize(it, Spliterator.NONNULL | Spliterator.DISTINCT), false)
+                .onClose(it::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null)
+            next = advance();
+        return next != null;
+    }
+
+    @Override
+    public SrcFile next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        SrcFile f = next;
+        next = null;
+        return f;
+    }
+
+    /**
+     * Finds the next source file, opening and closing folder listings as needed
+     *
+     * @return The next source file, or {@code null} once every folder is walked
+     */
+    private SrcFile advance() {
+        while (true) {
+            if (listings.isEmpty()) {
+                if (pending.isEmpty())
+                    return null;
+                push(pending.pop());
+                continue;
+            }
+
+            Iterator<Path> entries = listings.peek();
+            if (!entries.hasNext()) {
+                pop();
+                continue;
+            }
+
+            Path p = entries.next();
+            Path relative = root.relativize(p);
+            if (rules.isExcluded(relative))
+                continue;
+
+            BasicFileAttributes attrs = WorkspaceWalker.attributes(p, posix);
+            if (attrs == null)
+                continue;
+
+            if (attrs.isDirectory())
+                push(p);
+            else if (attrs.isRegularFile() && rules.isIncluded(relative))
+                return WorkspaceWalker.toSrcFile(p, attrs);
+        }
+    }
+
+    private void push(Path dir) {
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+            open.push(stream);
+            listings.push(stream.iterator());
+        } catch (IOException e) {
+            // unreadable folders contribute no files
+        }
+    }
+
+    private void pop() {
+        listings.pop();
+        try {
+            open.pop().close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Closes every folder listing that is still open
+     */
+    @Override
+    public void close() {
+        while (!open.isEmpty()) {
+            listings.pop();
+            try {
+                open.pop().close();
+            } catch (IOException e) {
+                // closing the rest matters more
+            }
+        }
+    }
+
+}
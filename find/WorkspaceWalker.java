@@ -0,0 +1,314 @@
+package find;
+
+import attributes.SrcFile;
+import metrics.OperationMetrics;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovery engine used by {@link FileSearcher} to find every source file under
+ * a workspace. Each project root and every folder under a project's src folder,
+ * at any depth, is listed with a {@link java.nio.file.DirectoryStream} as its
+ * own {@link java.util.concurrent.RecursiveAction}, so large workspaces are
+ * walked on every core of the {@code ForkJoinPool} instead of one project at a
+ * time. Which files count and which folders are skipped is decided by a
+ * {@link ScanRules}, excluded folders are pruned by name before they are ever
+ * stat'ed or listed. Every file found is streamed straight into a single
+ * concurrent {@code Set} rather than being merged from temporary copies. When
+ * given the {@link WorkspaceIndex} of a previous scan, folders whose modified
+ * time has not changed are served from it without being listed, and a fresh
+ * index of the workspace is built as it is walked.
+ */
+
+public class WorkspaceWalker {
+
+    private final Path root;
+    private final ScanRules rules;
+    private final WorkspaceIndex previous;
+    private final WorkspaceIndex index;
+    private final ForkJoinPool pool;
+    private final boolean posix;
+
+    /**
+     * Constructs a {@code WorkspaceWalker} for the workspace denoted by root which
+     * runs on the common {@code ForkJoinPool} and lists every folder
+     *
+     * @param root  The workspace directory to be searched
+     * @param rules The rules deciding which files and folders are scanned
+     */
+    public WorkspaceWalker(Path root, ScanRules rules) {
+        this(root, rules, new WorkspaceIndex(root, rules));
+    }
+
+    /**
+     * Constructs a {@code WorkspaceWalker} for the workspace denoted by root which
+     * runs on the common {@code ForkJoinPool}
+     *
+     * @param root     The workspace directory to be searched
+     * @param rules    The rules deciding which files and folders are scanned
+     * @param previous The index of the last scan of the workspace
+     */
+    public WorkspaceWalker(Path root, ScanRules rules, WorkspaceIndex previous) {
+        this(root, rules, previous, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructs a {@code WorkspaceWalker} for the workspace denoted by root which
+     * runs its directory listings on the given pool
+     *
+     * @param root     The workspace directory to be searched
+     * @param rules    The rules deciding which files and folders are scanned
+     * @param previous The index of the last scan of the workspace
+     * @param pool     The {@code ForkJoinPool} the directory listings are run on
+     */
+    public WorkspaceWalker(Path root, ScanRules rules, WorkspaceIndex previous, ForkJoinPool pool) {
+        this.root = root;
+        this.rules = rules;
+        this.previous = previous;
+        this.index = new WorkspaceIndex(root, rules);
+        this.pool = pool;
+        this.posix = root.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     * Walks the workspace and returns every source file found. If the workspace
+     * itself has a src folder it is treated as a single project, otherwise every
+     * folder under it that is not excluded is treated as a project with its own
+     * src folder.
+     *
+     * @return A {@code CompactFileSet} holding the source code of the project(s)
+     */
+    public CompactFileSet walk() {
+        CompactFileSet files = new CompactFileSet();
+        pool.invoke(new WorkspaceTask(files));
+        return files;
+    }
+
+    /**
+     * Gets the index built by the last call to {@link #walk()}, holding every
+     * folder that was visited
+     *
+     * @return The index of the workspace
+     */
+    public WorkspaceIndex index() {
+        return index;
+    }
+
+    /**
+     * Reads the attributes of a file or folder without following links, as
+     * {@code PosixFileAttributes} where supported so the permissions come with
+     * the same stat call
+     *
+     * @param p The file or folder
+     * @return Its attributes, or {@code null} if they can not be read
+     */
+    private BasicFileAttributes attributes(Path p) {
+        return attributes(p, posix);
+    }
+
+    /**
+     * Reads the attributes of a file or folder without following links
+     *
+     * @param p     The file or folder
+     * @param posix If the file system supports {@code PosixFileAttributes}
+     * @return Its attributes, or {@code null} if they can not be read
+     */
+    static BasicFileAttributes attributes(Path p, boolean posix) {
+        try {
+            if (posix)
+                return Files.readAttributes(p, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a {@code SrcFile} from attributes that have already been read
+     *
+     * @param p     The file
+     * @param attrs Its attributes
+     * @return The new {@code SrcFile}
+     */
+    static SrcFile toSrcFile(Path p, BasicFileAttributes attrs) {
+        boolean locked;
+        if (attrs instanceof PosixFileAttributes)
+            locked = !((PosixFileAttributes) attrs).permissions().contains(PosixFilePermission.OWNER_WRITE);
+        else
+            locked = !Files.isWritable(p);
+
+        return new SrcFile(p.toFile(), nanos(attrs), attrs.size(), locked);
+    }
+
+    private static long nanos(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Finds the src folders of a workspace. If the workspace itself has a src
+     * folder it is treated as a single project, otherwise every folder under it
+     * that is not excluded is treated as a project with its own src folder.
+     *
+     * @param root  The workspace directory
+     * @param rules The rules deciding which folders are scanned
+     * @return The src folders of the workspace
+     */
+    static List<Path> sourceRoots(Path root, ScanRules rules) {
+        Path src = root.resolve("src");
+        if (!rules.isExcluded(root.relativize(src)) && Files.isDirectory(src))
+            return List.of(src);
+
+        List<Path> roots = new ArrayList<>();
+        for (Path project : list(root)) {
+            if (rules.isExcluded(root.relativize(project)))
+                continue;
+
+            Path projectSrc = project.resolve("src");
+            if (Files.isDirectory(projectSrc))
+                roots.add(projectSrc);
+        }
+        return roots;
+    }
+
+    /**
+     * Lists the entries of a directory, returning an empty list if it does not
+     * exist or can not be read so that one bad project does not stop the rest of
+     * the workspace from being searched.
+     *
+     * @param dir The directory to be listed
+     * @return The entries under dir
+     */
+    static List<Path> list(Path dir) {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream)
+                entries.add(p);
+        } catch (IOException e) {
+            // unreadable or missing directories contribute no files
+        }
+        return entries;
+    }
+
+    /**
+     * Top level task, forks one {@link SourceTask} per src folder found by
+     * {@link #sourceRoots(Path, ScanRules)}.
+     */
+    private class WorkspaceTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CompactFileSet files;
+
+        WorkspaceTask(CompactFileSet files) {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            List<SourceTask> tasks = new ArrayList<>();
+            for (Path src : sourceRoots(root, rules))
+                tasks.add(new SourceTask(src, -1, files));
+
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Visits a single directory. If the previous index still holds the directory
+     * the names of its files and sub folders are taken from there, and only the
+     * files are stat'ed, otherwise it is listed and every included regular file is
+     * added to the result set and every folder that is not excluded is forked as
+     * its own task.
+     */
+    private class SourceTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final CompactFileSet files;
+        private long lastModified;
+
+        SourceTask(Path dir, long lastModified, CompactFileSet files) {
+            this.dir = dir;
+            this.lastModified = lastModified;
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastModified < 0) {
+                BasicFileAttributes attrs = attributes(dir);
+                if (attrs == null)
+                    return;
+                lastModified = nanos(attrs);
+            }
+
+            List<SourceTask> folders = new ArrayList<>();
+            OperationMetrics.get().directoryVisited();
+
+            WorkspaceIndex.DirRecord cached = previous.lookup(dir, lastModified);
+            if (cached != null) {
+                // the listing is unchanged, but every file is stat'ed again as a
+                // chmod or an edit does not touch the folder's modified time
+                List<SrcFile> found = new ArrayList<>(cached.files.size());
+                List<String> names = new ArrayList<>(cached.files.size());
+                for (String name : cached.files) {
+                    Path p = dir.resolve(name);
+                    BasicFileAttributes attrs = attributes(p);
+                    if (attrs != null && attrs.isRegularFile()) {
+                        found.add(toSrcFile(p, attrs));
+                        names.add(name);
+                    }
+                }
+
+                files.addAll(found);
+                OperationMetrics.get().fileDiscovered(found.size());
+                index.put(dir, new WorkspaceIndex.DirRecord(lastModified, cached.dirs, names));
+                for (String name : cached.dirs)
+                    folders.add(new SourceTask(dir.resolve(name), -1, files));
+                invokeAll(folders);
+                return;
+            }
+
+            List<String> dirs = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            List<SrcFile> found = new ArrayList<>();
+
+            for (Path p : list(dir)) {
+                Path relative = root.relativize(p);
+                if (rules.isExcluded(relative))
+                    continue;
+
+                BasicFileAttributes attrs = attributes(p);
+                if (attrs == null)
+                    continue;
+
+                if (attrs.isDirectory()) {
+                    dirs.add(p.getFileName().toString());
+                    folders.add(new SourceTask(p, nanos(attrs), files));
+                } else if (attrs.isRegularFile() && rules.isIncluded(relative)) {
+                    found.add(toSrcFile(p, attrs));
+                    names.add(p.getFileName().toString());
+                }
+            }
+
+            files.addAll(found);
+            OperationMetrics.get().fileDiscovered(found.size());
+            index.put(dir, new WorkspaceIndex.DirRecord(lastModified, dirs, names));
+            invokeAll(folders);
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package find;
+
+import attributes.SrcFile;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live mode of a {@link FileSearcher}. Registers every source folder of the
+ * workspace with a {@link java.nio.file.WatchService} and, on a background
+ * daemon thread, adds files as they are created and removes them as they are
+ * deleted so the {@code FileSearcher} never has to be rebuilt to stay correct.
+ * New folders are registered and searched as they appear, and any other change
+ * to a file marks the cached status of the workspace as stale. If the workspace is
+ * locked when a file is created it can be locked straight away. Should the
+ * {@code WatchService} drop events, the affected folder is searched again.
+ */
+
+class WorkspaceWatcher implements AutoCloseable {
+
+    private final FileSearcher fs;
+    private final Path root;
+    private final ScanRules rules;
+    private final boolean autoLock;
+
+    private final WatchService service;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final Thread thread;
+
+    /**
+     * Constructs a {@code WorkspaceWatcher} for the given {@code FileSearcher}
+     *
+     * @param fs       The {@code FileSearcher} to keep up to date
+     * @param root     The workspace directory
+     * @param rules    The rules deciding which files and folders are watched
+     * @param autoLock If files created while the workspace is locked should be
+     *                 locked
+     * @throws IOException if a {@code WatchService} can not be created
+     */
+    WorkspaceWatcher(FileSearcher fs, Path root, ScanRules rules, boolean autoLock) throws IOException {
+        this.fs = fs;
+        this.root = root;
+        this.rules = rules;
+        this.autoLock = autoLock;
+        this.service = root.getFileSystem().newWatchService();
+        this.thread = new Thread(this::run, "workspace-watcher-" + root.getFileName());
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Registers every folder and starts the background thread
+     *
+     * @param dirs Every source folder of the workspace
+     * @throws IOException if a folder can not be registered
+     */
+    void start(List<Path> dirs) throws IOException {
+        for (Path d : dirs)
+            register(d);
+        thread.start();
+    }
+
+    /**
+     * Stops the background thread and releases the {@code WatchService}
+     */
+    @Override
+    public void close() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            // the service is unusable either way
+        }
+        thread.interrupt();
+    }
+
+    private void register(Path dir) throws IOException {
+        WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        keys.put(key, dir);
+    }
+
+    /**
+     * Event loop of the background thread, runs until the watcher is closed
+     */
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Path dir = keys.get(key);
+
+                if (dir != null) {
+                    for (WatchEvent<?> event : key.pollEvents())
+                        handle(dir, event);
+                }
+
+                if (!key.reset())
+                    keys.remove(key);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // watcher was closed
+        }
+    }
+
+    private void handle(Path dir, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            fs.removeFiles(dir);
+            added(dir);
+            return;
+        }
+
+        Path p = dir.resolve((Path) event.context());
+
+        if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY)
+            fs.edited();
+        else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+            fs.removeFiles(p);
+        else if (!rules.isExcluded(root.relativize(p)))
+            added(p);
+    }
+
+    /**
+     * Adds a created file, or every file under a created folder while registering
+     * the folder and its sub folders
+     *
+     * @param p The path that was created
+     */
+    private void added(Path p) {
+        try {
+            Files.walkFileTree(p, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                    if (!d.equals(p) && rules.isExcluded(root.relativize(d)))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    register(d);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                    Path relative = root.relativize(f);
+                    if (attrs.isRegularFile() && !rules.isExcluded(relative) && rules.isIncluded(relative))
+                        addFile(f, attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path f, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // the path was removed again before it could be searched
+        }
+    }
+
+    private void addFile(Path f, BasicFileAttributes attrs) {
+        SrcFile src = new SrcFile(f.toFile(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), attrs.size(), false);
+        try {
+            src.refreshState();
+        } catch (IOException e) {
+            return;
+        }
+
+        if (autoLock && fs.isLocked() && !src.wasLocked())
+            src.lockFile();
+
+        // replaces a file that was already known, keeping its new lock state
+        fs.addFile(src);
+    }
+
+}
@@ -2,17 +2,85 @@ package main;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 import attributes.Account;
+import attributes.SrcFile;
+import find.BulkExecutor;
+import find.BulkResult;
 import find.FileSearcher;
+import find.IntegrityReport;
+import find.StatusReport;
+import find.WorkspaceRegistry;
 
 public class App {
 
-    static Scanner in = new Scanner(System.in);
+    // Only the menus read the console, so it is opened once they are reached
+    static Scanner in;
+
+    // Every workspace visited this session, so changing back needs no search
+    static WorkspaceRegistry workspaces = new WorkspaceRegistry(BulkExecutor.shared());
+
+    /**
+     * User Interface menu in the terminal for the user to decide what they would
+     * like to do in the application. Gives them 8 different options each invoking a
+     * different method from either the {@link attributes.Account} class or
+     * {@link find.FileSearcher} class. If the user decides to change account
+     * information the {@link #ACCOUNT_MENU} is shown next. Each time the user
+     * successfully changes the security of the files (locking or unlocking them)
+     * {@link attributes.Account#updateAction(String)} method is called and updated
+     * appropiately.
+     *
+     * @see attributes.SrcFile#lockFile()
+     * @see attributes.SrcFile#unlockFile()
+     * @see find.FileSearcher#lockAll()
+     * @see find.FileSearcher#unlockAll()
+     */
+    static final MenuEngine.Menu MAIN_MENU = new MenuEngine.Menu(
+            s -> String.format("\nCurrent Directory: %s\nOptions are as follows:\n\n", s.getWorkspace()),
+            "You are back at the main menu, please enter a option!")
+            .add("1", "Lock all of your workspace files in the directory denoted by you", App::lock)
+            .add("2", "Unlock all of your workspace files in the directory denoted by you", App::unlock)
+            .add("3", "Check the status of your workspace in the directory denoted by you", App::status)
+            .add("4", "Change directory", App::changeDirectory)
+            .add("5", "Update account information", s -> s.setMenu(App.ACCOUNT_MENU))
+            .add("6", "Undo the last lock or unlock of your workspace files", App::undo)
+            .add("7", "Verify the content of your workspace files has not changed since they were locked", App::verify)
+            .add("8", "Exit the file application security center", App::exit);
+
+    /**
+     * User menu in the terminal to decide what they would like to do with their
+     * account information. Displays the current account information of the user
+     * with their username being visible and their password being replaced with 7
+     * astriks. Given three choices: change username, change password, or exit back
+     * to main menu. For the first two choices it will then use the
+     * {@link attributes.Account#changeInfo(String)} method with the choice they
+     * choose respectively as the parameter. Keeps being shown until the user exits
+     * to the main menu.
+     */
+    static final MenuEngine.Menu ACCOUNT_MENU = new MenuEngine.Menu(
+            s -> String.format("Your current account info is as follows:\n\nUsername: %s\nPassword: *******\n\n",
+                    s.getAccount().getUser()),
+            null)
+            .add("1", "Change username", s -> changeInfo(s, "username"))
+            .add("2", "Change password", s -> changeInfo(s, "password"))
+            .add("3", "Exit back to main menu", s -> {
+                s.out().println("You are back at the main menu!");
+                s.setMenu(MAIN_MENU);
+            });
 
     public static void main(String[] args) throws IOException {
 
+        if (args.length > 0 && args[0].equals("daemon"))
+            System.exit(LockDaemon.run(args));
+        else if (args.length > 0)
+            System.exit(BatchCli.run(args));
+
+        in = new Scanner(System.in);
         System.out.println("Welcome to File security application center!!");
         System.out.println("Please enter your user name and pasword to begin: ");
 
@@ -21,154 +89,315 @@ public class App {
         if (a.login()) {
             System.out.println("You have successfully logged into your account!");
             System.out.println("Please enter the directory of your workspace files before you can continue ->");
-            FileSearcher fs = new FileSearcher(new File(in.nextLine()));
-            menu(fs, a);
+
+            Session s = new Session(a, workspaces, in, System.out);
+            while (s.getWorkspace() == null) {
+                try {
+                    s.setWorkspace(workspaces.add(new File(in.nextLine())));
+                } catch (IOException e) {
+                    System.out.printf("%s, please enter the directory again ->\n", e.getMessage());
+                }
+            }
+            s.setMenu(MAIN_MENU);
+            new MenuEngine().run(s);
         }
 
+        System.exit(0);
+
     }
 
     /**
-     * User Interface menu in the terminal for the user to decide what they would
-     * like to do in the application. Gives them 6 different options each invoking a
-     * different method from either the {@link attributes.Account} class or
-     * {@link find.FileSearcher} class. If the user decides to change account
-     * information the {@link #changeInfoMenu(Account, FileSearcher)} method is
-     * called. Each time the user decides to change the security of the files
-     * (locking or unlocking them) {@link attributes.Account#updateAction(String)}
-     * method is called and updated appropiately. Calls itself after every choice
-     * until the user decides to exit. If the user decides to change the directory
-     * of where they would like to change the security of their files
-     * 
-     * @param fs An instance of the object {@link find.FileSearcher}
-     * @param a  An instance of the object {@link attributes.Account}
-     * @throws IOException If files in specified directory can not be found as used
-     *                     by {@link find.FileSearcher#lockAll()},
-     *                     {@link find.FileSearcher#unlockAll()}, and the
-     *                     {@link find.FileSearcher} object instance
-     * 
-     * @see attributes.SrcFile#lockFile()
-     * @see attributes.SrcFile#unlockFile()
+     * Locks every file of the session's workspaces once the user confirms,
+     * offering to try the files that failed again
+     *
+     * @param s The session
+     * @throws IOException if the account can not be updated
      * @see find.FileSearcher#lockAll()
+     */
+    static void lock(Session s) throws IOException {
+        change(s, true);
+    }
+
+    /**
+     * Unlocks every file of the session's workspaces once the user confirms,
+     * offering to try the files that failed again
+     *
+     * @param s The session
+     * @throws IOException if the account can not be updated
      * @see find.FileSearcher#unlockAll()
      */
-    static void menu(FileSearcher fs, Account a) throws IOException {
-        System.out.printf("\nCurrent Directory: %s\n", fs.toString());
-        System.out.println("Options are as follows:\n");
-        System.out.println("1. Lock all of your workspace files in the directory denoted by you");
-        System.out.println("2. Unlock all of your workspace files in the directory denoted by you");
-        System.out.println("3. Check the status of your workspace in the directory denoted by you");
-        System.out.println("4. Change directory");
-        System.out.println("5. Update account information");
-        System.out.println("6. Exit the file application security center");
-        String action = a.lastAction;
-
-        switch (in.nextLine()) {
-
-            case "1":
-                System.out.printf(
-                        "You are about to lock all of the files in the directory: %s do you want to continue? (y/n)\n",
-                        fs.toString());
-                if (in.nextLine().equals("y"))
-                    if (fs.lockAll()) {
-                        action = "locked";
-                        System.out.println("\nAll files have been successfully locked!");
-                    }
-                break;
-
-            case "2":
-                System.out.printf(
-                        "You are about to unlock all of the files in the directory: %s do you want to continue? (y/n)\n",
-                        fs.toString());
-                if (in.nextLine().equals("y"))
-                    if (fs.unlockAll()) {
-                        action = "unlocked";
-                        System.out.println("\nAll files have been successfully unlocked!");
-                    }
-                break;
-
-            case "3":
-                System.out.printf("\nThe status of your files are: %s\n", a.lastAction);
-                break;
-            case "4":
-                System.out.println("Please enter the directory you wish to naviage to:");
-                fs = new FileSearcher(new File(in.nextLine()));
-                System.out.println("\nDirectory successfully changed!");
-                break;
-            case "5":
-                changeInfoMenu(a, fs);
-                break;
-            case "6":
-                System.out.println("You have successfully logged out!");
-                System.exit(0);
-                break;
-            default:
-                System.out.println("Invalid option, try again!");
-                menu(fs, a);
+    static void unlock(Session s) throws IOException {
+        change(s, false);
+    }
+
+    /**
+     * Locks or unlocks every file of the session's workspaces at the same time,
+     * updating the account once every file of every workspace is done
+     */
+    private static void change(Session s, boolean lock) throws IOException {
+        String verb = lock ? "lock" : "unlock";
+        List<Path> dirs = s.getSelected();
+        if (!s.confirm(String.format("You are about to %s all of the files in the directory: %s do you want to continue?",
+                verb, dirs.size() == 1 ? dirs.get(0) : dirs)))
+            return;
 
+        Map<Path, BulkResult> results = lock ? s.getWorkspaces().lockAll(dirs) : s.getWorkspaces().unlockAll(dirs);
+        boolean ok = true;
+        for (Map.Entry<Path, BulkResult> e : results.entrySet()) {
+            s.report().changed(e.getKey(), verb, e.getValue());
+            ok &= retry(s, e.getKey(), e.getValue(), verb, lock);
         }
 
-        a.updateAction(action);
-        System.out.println("You are back at the main menu, please enter a option!");
-        menu(fs, a);
+        if (ok)
+            updateAction(s.getAccount(), lock);
+    }
 
+    /**
+     * Prints the status of the session's workspaces along with every file that is
+     * missing or not in the state it was last put in
+     *
+     * @param s The session
+     */
+    static void status(Session s) {
+        for (Map.Entry<Path, StatusReport> e : s.getWorkspaces().status(s.getSelected()).entrySet())
+            s.report().status(e.getKey(), e.getValue());
     }
 
     /**
-     * 
-     * User menu in the terminal to decide what they would like to do with their
-     * account information. Displays the current account information of the user
-     * with their username being visible and their password being replaced with 7
-     * astriks. Given three choices: change username, change password, or exit back
-     * to main menu. For the first two choices it will then use the
-     * {@link attributes.Account#changeInfo(String)} method with the choice they
-     * choose respectively as the parameter. If user would like to exit, it calls
-     * the {@link #menu(FileSearcher, Account)} to travel back to the main menu of
-     * the application. Keeps going until the user exits to the main menu.
-     * 
-     * @param a  An instance of the object {@link attributes.Account}
-     * @param fs An instance of the object {@link find.FileSearcher}
-     * @throws IOException If something goes wrong in the
-     *                     {@link attributes.Account#changeInfo(String)} method when
-     *                     updating the user account information
-     */
-
-    static void changeInfoMenu(Account a, FileSearcher fs) throws IOException {
-        System.out.println("Your current account info is as follows:");
-
-        System.out.printf("\nUsername: %s\n", a.getUser());
-        System.out.println("Password: *******\n");
-
-        System.out.println("1. Change username");
-        System.out.println("2. Change password");
-        System.out.println("3. Exit back to main menu");
-
-        switch (in.nextLine()) {
-            case "1":
-                System.out.println("Please login again to continue:");
-                if (a.login()) {
-                    a.changeInfo("username");
-                    System.out.printf("\nYou have successfully changed your user name to: %s\n", a.getUser());
-                    break;
-                }
-            case "2":
-                System.out.println("Please login again to continue:");
-                if (a.login()) {
-                    a.changeInfo("password");
-                    System.out.println("\nYou have successfuly changed your password!");
-                    break;
-                }
-            case "3":
-                System.out.println("You are back at the main menu!");
-                menu(fs, a);
-                break;
-            default:
-                System.out.println("Invalid option, try again!");
-                changeInfoMenu(a, fs);
+     * Asks for another workspace directory and makes it the session's workspace
+     *
+     * @param s The session
+     * @throws IOException if the workspace can not be searched
+     */
+    static void changeDirectory(Session s) throws IOException {
+        s.out().println("Please enter the directory you wish to naviage to:");
+        String dir = s.readLine();
+        if (dir == null)
+            return;
 
+        s.setWorkspace(s.getWorkspaces().add(new File(dir)));
+        s.out().println("\nDirectory successfully changed!");
+    }
+
+    /**
+     * Undoes the last lock or unlock of each of the session's workspaces
+     *
+     * @param s The session
+     * @throws IOException if a workspace's ledger can not be read
+     * @see find.FileSearcher#undoLast(BulkExecutor)
+     */
+    static void undo(Session s) throws IOException {
+        for (Path p : s.getSelected()) {
+            FileSearcher fs = s.getWorkspaces().get(p);
+            BulkResult result;
+            try {
+                result = fs.undoLast(s.getWorkspaces().getExecutor());
+            } catch (IllegalStateException e) {
+                s.report().error(e.getMessage());
+                continue;
+            }
+
+            s.report().changed(p, "undo", result);
+            if (result.isSuccess())
+                updateAction(s.getAccount(), fs.isLocked());
         }
+    }
 
-        changeInfoMenu(a, fs);
+    /**
+     * Checks the content of the session's workspace files against the digests
+     * recorded when they were last locked, turning on verify mode so the digests
+     * are kept up to date from then on
+     *
+     * @param s The session
+     * @throws IOException if the digests can not be updated
+     * @see find.FileSearcher#verify(boolean, BulkExecutor)
+     */
+    static void verify(Session s) throws IOException {
+        verify(s, false);
+    }
+
+    /**
+     * Checks the content of the session's workspace files like
+     * {@link #verify(Session)}
+     *
+     * @param s    The session
+     * @param full If every file is hashed rather than only the changed ones
+     * @throws IOException if the digests can not be updated
+     */
+    static void verify(Session s, boolean full) throws IOException {
+        for (Path p : s.getSelected()) {
+            FileSearcher fs = s.getWorkspaces().get(p);
+            IntegrityReport report = fs.verify(full, s.getWorkspaces().getExecutor());
+            fs.setVerifying(true);
+            s.report().verified(p, report);
+        }
+    }
+
+    /**
+     * Ends the session
+     *
+     * @param s The session
+     */
+    static void exit(Session s) {
+        s.getAccount().logout();
+        s.out().println("You have successfully logged out!");
+        s.end();
+    }
+
+    /**
+     * Changes the username or password of the account, once the user has logged in
+     * again unless their session is still open
+     *
+     * @param s     The session
+     * @param field Either username or password
+     * @throws IOException if the account can not be updated
+     */
+    static void changeInfo(Session s, String field) throws IOException {
+        Account a = s.getAccount();
+        if (!a.isAuthenticated()) {
+            s.out().println("Please login again to continue:");
+            if (!a.login())
+                return;
+        }
+
+        a.changeInfo(field);
+        if (field.equals("username"))
+            s.out().printf("\nYou have successfully changed your user name to: %s\n", a.getUser());
+        else
+            s.out().println("\nYou have successfuly changed your password!");
+    }
+
+    /**
+     * Offers to try only the files a lock or unlock of a workspace failed on
+     * again, until they all succeed, the user declines or trying again changes
+     * none of them. A session that is not interactive is never offered it.
+     *
+     * @param s      The session
+     * @param dir    The workspace directory
+     * @param result The {@link find.BulkResult} of the operation
+     * @param verb   What the operation was trying to do to the files
+     * @param lock   If the operation was locking the files
+     * @return {@code true} if every file was eventually changed
+     * @throws IOException if the workspace's ledger can not be read
+     * @see find.FileSearcher#applyDelta(boolean, BulkExecutor)
+     */
+    static boolean retry(Session s, Path dir, BulkResult result, String verb, boolean lock) throws IOException {
+        while (!result.isSuccess()) {
+            if (!s.isInteractive()
+                    || !s.confirm(String.format("Would you like to try to %s only these files again?", verb)))
+                return false;
+            BulkResult again = s.getWorkspaces().get(dir).applyDelta(lock, s.getWorkspaces().getExecutor());
+            s.report().changed(dir, verb, again);
+            if (!again.isSuccess() && again.getSucceeded() == 0)
+                return false;
+            result = again;
+        }
+        return true;
+    }
+
+    /**
+     * Records in the account what the files were last changed to. The account is
+     * only written by one thread at a time, as the daemon changes workspaces for
+     * many clients at once.
+     *
+     * @param a      The logged in account
+     * @param locked If the files were locked
+     * @throws IOException if the account can not be updated
+     */
+    static void updateAction(Account a, boolean locked) throws IOException {
+        synchronized (a) {
+            a.updateAction(locked ? "locked" : "unlocked");
+        }
+    }
+
+    /**
+     * Prints every file and folder a bulk operation failed on
+     *
+     * @param out    Where to print to
+     * @param result The {@link find.BulkResult} of the operation
+     * @param verb   What the operation was trying to do to the files
+     */
+    static void printFailures(PrintStream out, BulkResult result, String verb) {
+        for (SrcFile x : result.getFailures())
+            out.printf("There was an error at file %s it could not %s\n", x.toString(), verb);
+        for (Path d : result.getFolderFailures())
+            out.printf("There was an error at folder %s it could not %s\n", d, verb);
+    }
+
+    /**
+     * Prints every file of a status report that is missing or not in the state it
+     * was last put in
+     *
+     * @param out    Where to print to
+     * @param report The {@link find.StatusReport} of a workspace
+     */
+    static void printStatus(PrintStream out, StatusReport report) {
+        String lastAction = report.isExpectLocked() ? "locked" : "unlocked";
+        for (SrcFile x : report.getMissing())
+            out.printf("File %s no longer exists\n", x.toString());
+        for (SrcFile x : report.getDrifted())
+            out.printf("File %s is not %s\n", x.toString(), lastAction);
+    }
+
+    /**
+     * Prints every file of an integrity report whose content changed or that no
+     * longer exists
+     *
+     * @param out    Where to print to
+     * @param report The {@link find.IntegrityReport} of a workspace
+     */
+    static void printIntegrity(PrintStream out, IntegrityReport report) {
+        for (SrcFile x : report.getTampered())
+            out.printf("File %s has been changed since it was locked\n", x.toString());
+        for (SrcFile x : report.getMissing())
+            out.printf("File %s no longer exists\n", x.toString());
+    }
+
+    /**
+     * Reports what the commands did in the sentences the menus have always
+     * printed, for the interactive {@link Session}
+     */
+    static class Console implements Reporter {
+
+        private final PrintStream out;
+
+        Console(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void changed(Path workspace, String command, BulkResult result) {
+            if (command.equals("undo")) {
+                if (result.isSuccess())
+                    out.printf("\n%d files have been put back as they were!\n", result.getSucceeded());
+                else
+                    printFailures(out, result, "be put back");
+            } else if (result.isSuccess()) {
+                out.printf("\nAll files have been successfully %sed!\n", command);
+                out.printf("%d files were already %sed and left as they were\n", result.getSkipped(), command);
+            } else
+                printFailures(out, result, command);
+        }
+
+        @Override
+        public void status(Path workspace, StatusReport report) {
+            out.printf("\nThe status of your files are: %s\n", report);
+            printStatus(out, report);
+        }
+
+        @Override
+        public void verified(Path workspace, IntegrityReport report) {
+            out.printf("\nThe content of your files: %s\n", report);
+            printIntegrity(out, report);
+            if (report.getUnrecorded() > 0)
+                out.println("Files that were never locked since verifying was turned on can not be verified yet");
+        }
+
+        @Override
+        public void error(String message) {
+            out.println(message);
+        }
 
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,613 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import attributes.Account;
+import attributes.LockBackends;
+import attributes.SrcFile;
+import find.BulkExecutor;
+import find.BulkResult;
+import find.FileSearcher;
+import find.IntegrityReport;
+import find.LockLedger;
+import find.RateLimiter;
+import find.ScanRules;
+import find.StatusReport;
+import find.WorkspaceRegistry;
+import find.WorkspaceStream;
+import metrics.AuditLog;
+
+/**
+ * Non-interactive front end of the application, used when {@link App} is given
+ * command line arguments so that workspaces can be locked, unlocked or checked
+ * from scripts and pipelines without answering any prompts.
+ *
+ * Usage: {@code lock|unlock|status|undo|verify|audit --workspace DIR
+ * [--workspace DIR ...] [--parallelism N] [--format text|json]
+ * [--credentials FILE] [--daemon PATH] [--stream]
+ * [--backend legacy|posix|acl|auto] [--subtree] [--verify] [--full]
+ * [--rate N] [--latency-target MS] [--since TIME] [--until TIME]}
+ *
+ * The account is logged into with the username and password on the first two
+ * lines of the credentials file, or if there is none from the WFS_USER and
+ * WFS_PASSWORD environment variables. With --daemon the commands are instead
+ * sent to a running {@link LockDaemon}, which is already logged in. With
+ * --stream the files of each workspace are locked, unlocked or checked as they
+ * are found through a {@link find.WorkspaceStream} and never held in memory or
+ * indexed, for workspaces too large to keep whole. With --backend the files are
+ * locked through the named {@link attributes.LockBackend}, or with auto the
+ * cheapest one that works in the first workspace. With --subtree the folders
+ * of each workspace are locked along with its files, see
+ * {@link find.FileSearcher#setSubtreeLocking(boolean)}. The exit status is one of
+ * the {@code EXIT_} constants of this class. Every command but audit is run
+ * by the same commands of {@link App} as the menus, in a {@link Session} that
+ * is not interactive, and only printed differently. The undo command puts back
+ * the files changed by the last lock or unlock of each workspace, see
+ * {@link find.FileSearcher#undoLast(BulkExecutor)}. With --verify the digest
+ * of every file is recorded when it is locked, and the verify command checks
+ * the files against them, hashing every file rather than only the changed ones
+ * with --full, see {@link find.FileSearcher#verify(boolean, BulkExecutor)}.
+ * --rate limits the files changed or checked per second, and with
+ * --latency-target the rate is lowered whenever the p99 latency of a call goes
+ * over the target, see {@link find.RateLimiter}. The audit command prints every
+ * lock and unlock of a file under the workspaces recorded in the
+ * {@link metrics.AuditLog}, between --since and --until if given, each an
+ * ISO-8601 instant, local date and time or date.
+ */
+
+public class BatchCli {
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 1;
+    public static final int EXIT_USAGE = 2;
+    public static final int EXIT_AUTH = 3;
+    public static final int EXIT_IO = 4;
+
+    private static final String USAGE = "Usage: lock|unlock|status|undo|verify|audit --workspace DIR [--workspace DIR ...] "
+            + "[--parallelism N] [--format text|json] [--credentials FILE] [--daemon PATH] [--stream] "
+            + "[--backend legacy|posix|acl|auto] [--subtree] [--verify] [--full] [--rate N] [--latency-target MS] "
+            + "[--since TIME] [--until TIME]";
+
+    private String command;
+    private final List<String> workspaces = new ArrayList<>();
+    private int parallelism = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private boolean json;
+    private String credentials;
+    private String daemon;
+    private boolean stream;
+    private ScanRules rules;
+    private String backend;
+    private boolean subtree;
+    private boolean verify;
+    private boolean full;
+    private double rate;
+    private long latencyTarget;
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    BatchCli(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Runs a single command given on the command line
+     *
+     * @param args The command line arguments
+     * @return The exit status of the command
+     */
+    static int run(String[] args) {
+        return new BatchCli(System.out, System.err).execute(args);
+    }
+
+    /**
+     * Parses the arguments, logs in and runs the command on every workspace
+     *
+     * @param args The command line arguments
+     * @return The exit status of the command
+     */
+    int execute(String[] args) {
+        try {
+            parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        // the audit log still holds the history of a workspace that is gone
+        if (!command.equals("audit")) {
+            for (String w : workspaces) {
+                if (!Files.isDirectory(Paths.get(w))) {
+                    err.println("Error: Not a directory: " + w);
+                    return EXIT_IO;
+                }
+            }
+        }
+
+        if (daemon != null)
+            return sendToDaemon();
+
+        try {
+            Account a = new Account();
+            if (!login(a, credentials)) {
+                err.println("Incorrect username or password!");
+                return EXIT_AUTH;
+            }
+
+            if (backend != null) {
+                try {
+                    SrcFile.setBackend(LockBackends.choose(backend, Paths.get(workspaces.get(0))));
+                } catch (IllegalArgumentException e) {
+                    err.println(e.getMessage());
+                    return EXIT_USAGE;
+                }
+            }
+
+            if (command.equals("audit"))
+                return audit() ? EXIT_OK : EXIT_FAILED;
+
+            RateLimiter limiter = rate > 0
+                    ? new RateLimiter(rate, TimeUnit.MILLISECONDS.toNanos(latencyTarget))
+                    : RateLimiter.fromProperties();
+
+            try (BulkExecutor executor = BulkExecutor.bounded(parallelism, limiter);
+                    WorkspaceRegistry registry = new WorkspaceRegistry(executor)) {
+                List<Path> dirs = new ArrayList<>();
+                for (String w : workspaces) {
+                    if (stream)
+                        dirs.add(Paths.get(w));
+                    else {
+                        FileSearcher fs = registry.add(new File(w));
+                        if (subtree)
+                            fs.setSubtreeLocking(true);
+                        if (verify)
+                            fs.setVerifying(true);
+                        dirs.add(fs.getDirectory());
+                    }
+                }
+
+                boolean ok = runOn(stream ? null : registry, executor, dirs, a);
+                if (limiter != null && !json)
+                    out.printf("Rate: %s%n", limiter);
+                return ok ? EXIT_OK : EXIT_FAILED;
+            }
+        } catch (IOException e) {
+            err.println("Error: " + e.getMessage());
+            return EXIT_IO;
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "lock":
+                case "unlock":
+                case "status":
+                case "undo":
+                case "verify":
+                case "audit":
+                    if (command != null)
+                        throw new IllegalArgumentException("Only one command can be given");
+                    command = args[i];
+                    break;
+                case "--workspace":
+                    workspaces.add(value(args, ++i));
+                    break;
+                case "--parallelism":
+                    try {
+                        parallelism = Integer.parseInt(value(args, ++i));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid parallelism: " + args[i]);
+                    }
+                    if (parallelism < 1)
+                        throw new IllegalArgumentException("Invalid parallelism: " + args[i]);
+                    break;
+                case "--format":
+                    String format = value(args, ++i);
+                    if (!format.equals("text") && !format.equals("json"))
+                        throw new IllegalArgumentException("Invalid format: " + format);
+                    json = format.equals("json");
+                    break;
+                case "--credentials":
+                    credentials = value(args, ++i);
+                    break;
+                case "--daemon":
+                    daemon = value(args, ++i);
+                    break;
+                case "--stream":
+                    stream = true;
+                    break;
+                case "--backend":
+                    backend = value(args, ++i);
+                    break;
+                case "--subtree":
+                    subtree = true;
+                    break;
+                case "--verify":
+                    verify = true;
+                    break;
+                case "--full":
+                    full = true;
+                    break;
+                case "--rate":
+                    try {
+                        rate = Double.parseDouble(value(args, ++i));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid rate: " + args[i]);
+                    }
+                    if (!(rate >= 1))
+                        throw new IllegalArgumentException("Invalid rate: " + args[i]);
+                    break;
+                case "--since":
+                    since = time(value(args, ++i), false);
+                    break;
+                case "--until":
+                    until = time(value(args, ++i), true);
+                    break;
+                case "--latency-target":
+                    try {
+                        latencyTarget = Long.parseLong(value(args, ++i));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid latency target: " + args[i]);
+                    }
+                    if (latencyTarget < 1)
+                        throw new IllegalArgumentException("Invalid latency target: " + args[i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        if (command == null)
+            throw new IllegalArgumentException("No command given");
+        if (workspaces.isEmpty())
+            throw new IllegalArgumentException("No workspace given");
+        if (subtree && (stream || daemon != null))
+            throw new IllegalArgumentException("--subtree can not be used with --stream or --daemon");
+        if (backend != null && daemon != null)
+            throw new IllegalArgumentException("--backend can not be used with --daemon");
+        if (command.equals("audit") && daemon != null)
+            throw new IllegalArgumentException("audit can not be used with --daemon");
+        if ((command.equals("undo") || command.equals("verify") || command.equals("audit")) && stream)
+            throw new IllegalArgumentException(command + " can not be used with --stream");
+        if (full && daemon != null)
+            throw new IllegalArgumentException("--full can not be used with --daemon");
+        if (latencyTarget > 0 && rate == 0)
+            throw new IllegalArgumentException("--latency-target needs a --rate");
+        if (rate > 0 && daemon != null)
+            throw new IllegalArgumentException("--rate can not be used with --daemon");
+        if (verify && (stream || daemon != null))
+            throw new IllegalArgumentException("--verify can not be used with --stream or --daemon");
+    }
+
+    /**
+     * Reads a time given on the command line as an ISO-8601 instant, or a date and
+     * time or date in the local time zone
+     *
+     * @param value The time
+     * @param end   If a bare date means the end of that day rather than its start
+     * @return The time in milliseconds since the epoch
+     */
+    private static long time(String value, boolean end) {
+        try {
+            return Instant.parse(value).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // not an instant
+        }
+        try {
+            return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // not a date and time
+        }
+        try {
+            LocalDate day = LocalDate.parse(value);
+            return (end ? day.plusDays(1) : day).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli()
+                    - (end ? 1 : 0);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time: " + value);
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        return args[i];
+    }
+
+    /**
+     * Logs into the account with the credentials file, or the environment if no
+     * file was given
+     *
+     * @param a           The account to log into
+     * @param credentials The credentials file, or {@code null} to use the
+     *                    environment
+     * @return {@code true} if the credentials match the account
+     * @throws IOException if the credentials file can not be read
+     */
+    static boolean login(Account a, String credentials) throws IOException {
+        String user;
+        String password;
+
+        if (credentials != null) {
+            List<String> lines = Files.readAllLines(Paths.get(credentials));
+            if (lines.size() < 2)
+                return false;
+            user = lines.get(0);
+            password = lines.get(1);
+        } else {
+            user = System.getenv("WFS_USER");
+            password = System.getenv("WFS_PASSWORD");
+            if (user == null || password == null)
+                return false;
+        }
+
+        return a.authenticate(user, password);
+    }
+
+    /**
+     * Prints every audit entry for a file under the workspaces within the time
+     * span given
+     *
+     * @return {@code true} if every lock and unlock found succeeded
+     * @throws IOException if the audit log can not be read
+     */
+    private boolean audit() throws IOException {
+        boolean ok = true;
+        String sep = "";
+
+        if (json)
+            out.print("[");
+
+        for (String w : workspaces) {
+            Path p = Paths.get(w).toAbsolutePath().normalize();
+            for (AuditLog.Entry e : AuditLog.get().query(p.toString(), since, until)) {
+                if (json)
+                    out.printf("%s{\"time\":%s,\"user\":%s,\"action\":\"%s\",\"ok\":%b,\"path\":%s}", sep,
+                            quote(Instant.ofEpochMilli(e.getTime()).toString()), quote(e.getUser()),
+                            e.getKind().name().toLowerCase(), e.isOk(), quote(e.getPath()));
+                else
+                    out.println(e);
+                ok &= e.isOk();
+                sep = ",";
+            }
+        }
+
+        if (json)
+            out.println("]");
+        return ok;
+    }
+
+    /**
+     * Runs the command on every workspace and prints their results in the order
+     * the workspaces were given, at the same time through the same commands as
+     * the menus or, when streaming, one workspace after another straight from
+     * disk
+     *
+     * @param registry The registry holding the workspaces, or {@code null} to
+     *                 stream them
+     * @return {@code true} if the command succeeded on every file
+     */
+    private boolean runOn(WorkspaceRegistry registry, BulkExecutor executor, List<Path> dirs, Account a)
+            throws IOException {
+        Printer printer = new Printer();
+        if (json)
+            out.print("[");
+
+        if (registry == null)
+            stream(executor, dirs, a, printer);
+        else {
+            Session s = new Session(a, registry, dirs, out, printer);
+            switch (command) {
+                case "lock":
+                    App.lock(s);
+                    break;
+                case "unlock":
+                    App.unlock(s);
+                    break;
+                case "status":
+                    App.status(s);
+                    break;
+                case "undo":
+                    App.undo(s);
+                    break;
+                default:
+                    App.verify(s, full);
+                    break;
+            }
+        }
+
+        if (json)
+            out.println("]");
+
+        return printer.ok;
+    }
+
+    /**
+     * Runs the command on every workspace one after another as its files are
+     * found, reporting and updating the account like the commands of {@link App}
+     */
+    private void stream(BulkExecutor executor, List<Path> dirs, Account a, Printer printer) throws IOException {
+        if (command.equals("status")) {
+            for (Path p : dirs)
+                printer.status(p,
+                        FileSearcher.status(WorkspaceStream.files(p, rules()), FileSearcher.wasLastLocked(p), executor));
+            return;
+        }
+
+        boolean lock = command.equals("lock");
+        for (Path p : dirs) {
+            BulkResult result = lock ? FileSearcher.lockAll(WorkspaceStream.files(p, rules()), executor)
+                    : FileSearcher.unlockAll(WorkspaceStream.files(p, rules()), executor);
+            // the changed files are not kept, but the state is, for status
+            LockLedger.open(p).appendState(lock, result.getFailures());
+            printer.changed(p, command, result);
+        }
+
+        if (printer.ok)
+            App.updateAction(a, lock);
+    }
+
+    private ScanRules rules() throws IOException {
+        if (rules == null)
+            rules = ScanRules.load();
+        return rules;
+    }
+
+    /**
+     * Sends the command for every workspace to a running {@link LockDaemon} and
+     * prints its responses
+     *
+     * @return The exit status of the command
+     */
+    private int sendToDaemon() {
+        boolean ok = true;
+
+        try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(daemon));
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+                Writer w = new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8)) {
+            if (json)
+                out.print("[");
+
+            for (int i = 0; i < workspaces.size(); i++) {
+                String dir = Paths.get(workspaces.get(i)).toAbsolutePath().toString();
+                w.write(command.toUpperCase() + " " + dir + "\n");
+                w.flush();
+
+                String response = in.readLine();
+                if (response == null)
+                    throw new IOException("daemon closed the connection");
+
+                ok &= response.startsWith("OK") && !response.matches(".*(failed|missing|drifted|tampered)=[1-9].*");
+
+                if (json) {
+                    if (i > 0)
+                        out.print(",");
+                    out.printf("{\"workspace\":%s,\"command\":\"%s\",\"response\":%s}", quote(dir), command,
+                            quote(response));
+                } else
+                    out.printf("%s: %s%n", dir, response);
+            }
+
+            if (json)
+                out.println("]");
+        } catch (IOException e) {
+            err.println("Error: " + e.getMessage());
+            return EXIT_IO;
+        }
+
+        return ok ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Prints what the commands did to each workspace, as a line of text or a JSON
+     * object, and keeps track of whether every one of them succeeded
+     */
+    private class Printer implements Reporter {
+
+        private boolean ok = true;
+        private String sep = "";
+
+        @Override
+        public void changed(Path workspace, String command, BulkResult result) {
+            if (json)
+                out.printf("%s{\"workspace\":%s,\"command\":\"%s\",\"succeeded\":%d,\"skipped\":%d,"
+                        + "\"failed\":%s,\"failedFolders\":%s,\"elapsedMillis\":%d}", sep,
+                        quote(workspace.toString()), command, result.getSucceeded(), result.getSkipped(),
+                        quote(result.getFailures()), quote(result.getFolderFailures()),
+                        result.getElapsedNanos() / 1_000_000);
+            else {
+                out.printf("%s: %s%n", workspace, result);
+                App.printFailures(out, result, command.equals("undo") ? "be put back" : command);
+            }
+            ok &= result.isSuccess();
+            sep = ",";
+        }
+
+        @Override
+        public void status(Path workspace, StatusReport report) {
+            if (json)
+                out.printf("%s{\"workspace\":%s,\"command\":\"status\",\"locked\":%d,\"unlocked\":%d,"
+                        + "\"missing\":%s,\"drifted\":%s}", sep, quote(workspace.toString()), report.getLocked(),
+                        report.getUnlocked(), quote(report.getMissing()), quote(report.getDrifted()));
+            else {
+                out.printf("%s: %s%n", workspace, report);
+                App.printStatus(out, report);
+            }
+            ok &= report.isClean();
+            sep = ",";
+        }
+
+        @Override
+        public void verified(Path workspace, IntegrityReport report) {
+            if (json)
+                out.printf("%s{\"workspace\":%s,\"command\":\"verify\",\"verified\":%d,\"unchanged\":%d,"
+                        + "\"unrecorded\":%d,\"tampered\":%s,\"missing\":%s,\"elapsedMillis\":%d}", sep,
+                        quote(workspace.toString()), report.getVerified(), report.getUnchanged(),
+                        report.getUnrecorded(), quote(report.getTampered()), quote(report.getMissing()),
+                        report.getElapsedNanos() / 1_000_000);
+            else {
+                out.printf("%s: %s%n", workspace, report);
+                App.printIntegrity(out, report);
+            }
+            ok &= report.isIntact();
+            sep = ",";
+        }
+
+        @Override
+        public void error(String message) {
+            err.println(message);
+            ok = false;
+        }
+
+    }
+
+    private static String quote(List<?> files) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < files.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(quote(files.get(i).toString()));
+        }
+        return sb.append(']').toString();
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+}
@@ -0,0 +1,23 @@
+package main;
+
+import java.io.IOException;
+
+/**
+ * A single action the user can choose from a {@link MenuEngine} menu. A command
+ * only works on the {@link Session} it is given, so the same command can be run
+ * by the interactive menus or by any other front end with a session of its own.
+ */
+
+@FunctionalInterface
+public interface Command {
+
+    /**
+     * Runs the command
+     *
+     * @param s The session the command is run in
+     * @throws IOException if the account or a workspace can not be read or
+     *                     written
+     */
+    void run(Session s) throws IOException;
+
+}
@@ -0,0 +1,453 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+import attributes.Account;
+import find.BulkExecutor;
+import find.BulkResult;
+import find.IntegrityReport;
+import find.LockPolicy;
+import find.LockScheduler;
+import find.StatusReport;
+import find.WorkspaceRegistry;
+
+/**
+ * Long running mode of the application which logs into the account once and
+ * then serves lock, unlock, status, undo and verify commands from local
+ * clients over a Unix domain socket, so no command pays for starting the JVM,
+ * logging in or searching the workspace again. Every workspace a command names
+ * is searched once and then kept warm in live mode, see
+ * {@link find.FileSearcher#startWatching(boolean)}.
+ *
+ * Usage: {@code daemon --socket PATH [--parallelism N] [--credentials FILE]
+ * [--policies FILE]}
+ *
+ * The protocol is one request per line,
+ * {@code LOCK|UNLOCK|STATUS|UNDO|VERIFY|FORGET <dir>} or {@code PING}, answered
+ * by one line starting with {@code OK} followed by space separated key=value
+ * pairs, or {@code ERR} followed by a message. The commands are the ones the
+ * menus run, see {@link App}, in a {@link Session} that is not interactive and
+ * sums what they did into the response. Giving
+ * {@code *} in place of a directory runs the command on every workspace the
+ * daemon holds at the same time, through its {@link find.WorkspaceRegistry}.
+ * Any number of requests can be sent over one connection. The socket file is
+ * only accessible to the user running the daemon from the moment it appears,
+ * and connections from any other user are closed straight away where the
+ * system reports who is connecting.
+ *
+ * Every workspace with a {@link find.LockPolicy} in the policies file, the
+ * policies.dat file next to info.dat unless another is given, is added when the
+ * daemon starts and locked and unlocked by a {@link find.LockScheduler} as its
+ * policy says for as long as the daemon runs.
+ */
+
+public class LockDaemon {
+
+    // File type bits of a stat mode, and the type of a socket
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private final Path socket;
+    private final Account account;
+    private final WorkspaceRegistry workspaces;
+    private final LockScheduler scheduler;
+    private final ExecutorService clients = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "daemon-client");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructs a {@code LockDaemon} for an account that has already been logged
+     * into
+     *
+     * @param socket   Path of the socket file to listen on
+     * @param account  The logged in account
+     * @param executor The {@code BulkExecutor} shared by every command
+     */
+    LockDaemon(Path socket, Account account, BulkExecutor executor) {
+        this.socket = socket;
+        this.account = account;
+        this.workspaces = new WorkspaceRegistry(executor);
+        this.scheduler = new LockScheduler(workspaces, executor, this::scheduled);
+    }
+
+    /**
+     * Starts the daemon from the command line, only returning if it fails to
+     * start
+     *
+     * @param args The command line arguments, starting with daemon
+     * @return The exit status, one of the {@code EXIT_} constants of
+     *         {@link BatchCli}
+     */
+    static int run(String[] args) {
+        String socket = null;
+        String credentials = null;
+        String policies = null;
+        int parallelism = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--socket":
+                        socket = args[++i];
+                        break;
+                    case "--credentials":
+                        credentials = args[++i];
+                        break;
+                    case "--parallelism":
+                        parallelism = Integer.parseInt(args[++i]);
+                        break;
+                    case "--policies":
+                        policies = args[++i];
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                }
+            }
+            if (socket == null)
+                throw new IllegalArgumentException("No socket given");
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: daemon --socket PATH [--parallelism N] [--credentials FILE] [--policies FILE]");
+            return BatchCli.EXIT_USAGE;
+        }
+
+        try {
+            Account a = new Account();
+            if (!BatchCli.login(a, credentials)) {
+                System.err.println("Incorrect username or password!");
+                return BatchCli.EXIT_AUTH;
+            }
+
+            LockDaemon daemon = new LockDaemon(Paths.get(socket), a, BulkExecutor.bounded(parallelism));
+            for (LockPolicy p : policies == null ? LockPolicy.load() : LockPolicy.load(Paths.get(policies)))
+                daemon.scheduler.add(p);
+            daemon.serve();
+            return BatchCli.EXIT_OK;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return BatchCli.EXIT_USAGE;
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return BatchCli.EXIT_IO;
+        }
+    }
+
+    /**
+     * Binds the socket and serves clients until the process is stopped
+     *
+     * @throws IOException if the socket can not be bound
+     */
+    void serve() throws IOException {
+        removeStale();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            bind(server);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    if (isSocket(socket))
+                        Files.delete(socket);
+                } catch (IOException e) {
+                    // nothing left to clean up with
+                }
+            }));
+
+            System.out.printf("Listening on %s with %d lock policies%n", socket, scheduler.size());
+
+            UserPrincipal owner = Files.getOwner(socket);
+            while (true) {
+                SocketChannel client = server.accept();
+                if (!isOwner(client, owner)) {
+                    client.close();
+                    continue;
+                }
+                clients.execute(() -> handle(client));
+            }
+        }
+    }
+
+    /**
+     * Removes a socket left behind by a daemon that is no longer running. Nothing
+     * else is ever removed, so a mistyped --socket can not delete a regular file,
+     * and the socket of a daemon that still answers is left to it.
+     *
+     * @throws IOException if the path is taken by something else than a stale
+     *                     socket
+     */
+    private void removeStale() throws IOException {
+        if (!Files.exists(socket, LinkOption.NOFOLLOW_LINKS))
+            return;
+        if (!isSocket(socket))
+            throw new IOException(socket + " already exists and is not a socket");
+
+        SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            probe.connect(UnixDomainSocketAddress.of(socket));
+            throw new IOException("A daemon is already listening on " + socket);
+        } catch (ConnectException e) {
+            // nothing is listening
+        } finally {
+            probe.close();
+        }
+        Files.delete(socket);
+    }
+
+    /**
+     * Checks if a path is a Unix domain socket, not following a symbolic link
+     */
+    private static boolean isSocket(Path p) throws IOException {
+        if (!Files.exists(p, LinkOption.NOFOLLOW_LINKS))
+            return false;
+        try {
+            int mode = (Integer) Files.getAttribute(p, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // no unix view, a socket is at least neither a file, folder nor link
+            return Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    /**
+     * Binds the socket in a new folder only the user can enter, restricts the
+     * socket file to the user and only then moves it to its path, so there is no
+     * moment at which another user could connect to it
+     */
+    private void bind(ServerSocketChannel server) throws IOException {
+        Path parent = socket.toAbsolutePath().getParent();
+        Path dir;
+        try {
+            dir = Files.createTempDirectory(parent, ".wfs-socket",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            // no POSIX permissions to restrict
+            server.bind(UnixDomainSocketAddress.of(socket));
+            return;
+        }
+
+        Path bound = dir.resolve(socket.getFileName());
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Checks that a client runs as the same user as the daemon, where the system
+     * can tell who is on the other end of the socket
+     */
+    private static boolean isOwner(SocketChannel client, UserPrincipal owner) {
+        try {
+            UnixDomainPrincipal peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            return peer.user().getName().equals(owner.getName());
+        } catch (UnsupportedOperationException e) {
+            // only the socket file's permissions keep other users out
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Answers every request sent over a connection until the client closes it
+     *
+     * @param client The client's connection
+     */
+    private void handle(SocketChannel client) {
+        try (SocketChannel ch = client;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.write(respond(line.trim()));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    /**
+     * Runs a single request
+     *
+     * @param request The request line
+     * @return The response line
+     */
+    String respond(String request) {
+        int split = request.indexOf(' ');
+        String verb = (split < 0 ? request : request.substring(0, split)).toUpperCase();
+        String arg = split < 0 ? "" : request.substring(split + 1).trim();
+
+        try {
+            switch (verb) {
+                case "PING":
+                    return "OK workspaces=" + workspaces.paths().size() + " policies=" + scheduler.size();
+                case "FORGET":
+                    scheduler.remove(Paths.get(arg));
+                    workspaces.remove(Paths.get(arg));
+                    return "OK";
+                case "LOCK":
+                case "UNLOCK":
+                case "STATUS":
+                case "UNDO":
+                case "VERIFY":
+                    Summary summary = new Summary(verb);
+                    Session s = new Session(account, workspaces, select(arg), System.out, summary);
+                    if (verb.equals("LOCK"))
+                        App.lock(s);
+                    else if (verb.equals("UNLOCK"))
+                        App.unlock(s);
+                    else if (verb.equals("STATUS"))
+                        App.status(s);
+                    else if (verb.equals("UNDO"))
+                        App.undo(s);
+                    else
+                        App.verify(s);
+                    return summary.response();
+                default:
+                    return "ERR unknown command " + verb;
+            }
+        } catch (IOException | RuntimeException e) {
+            return "ERR " + e.getMessage();
+        }
+    }
+
+    /**
+     * Records a lock or unlock made by the scheduler the same way as one asked
+     * for by a client
+     */
+    private void scheduled(Path workspace, boolean lock, String reason, BulkResult result) {
+        System.out.printf("%s %s (%s): %s%n", lock ? "Locked" : "Unlocked", workspace, reason, result);
+        if (!result.isSuccess())
+            return;
+
+        try {
+            App.updateAction(account, lock);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the workspaces a request names, every workspace for {@code *}, or
+     * otherwise the one named, which is searched and put in live mode the first
+     * time it is named so it stays warm for the next request
+     */
+    private List<Path> select(String dir) throws IOException {
+        if (dir.isEmpty())
+            throw new IllegalArgumentException("no workspace given");
+        if (dir.equals("*"))
+            return new ArrayList<>(workspaces.paths());
+
+        Path p = Paths.get(dir);
+        if (workspaces.get(p) == null) {
+            if (!Files.isDirectory(p))
+                throw new IllegalArgumentException("not a directory " + dir);
+            workspaces.add(p.toFile()).startWatching(true);
+        }
+
+        return List.of(p);
+    }
+
+    /**
+     * Sums what a command did to every workspace of a request into the one line
+     * response
+     */
+    private static class Summary implements Reporter {
+
+        private final String verb;
+        private String error;
+        private int workspaces;
+        private long succeeded, skipped, failed, micros;
+        private long locked, unlocked, missing, drifted;
+        private long verified, unchanged, unrecorded, tampered;
+
+        Summary(String verb) {
+            this.verb = verb;
+        }
+
+        @Override
+        public void changed(Path workspace, String command, BulkResult result) {
+            workspaces++;
+            succeeded += result.getSucceeded();
+            skipped += result.getSkipped();
+            failed += result.getFailures().size() + result.getFolderFailures().size();
+            micros = Math.max(micros, result.getElapsedNanos() / 1000);
+        }
+
+        @Override
+        public void status(Path workspace, StatusReport report) {
+            locked += report.getLocked();
+            unlocked += report.getUnlocked();
+            missing += report.getMissing().size();
+            drifted += report.getDrifted().size();
+        }
+
+        @Override
+        public void verified(Path workspace, IntegrityReport report) {
+            verified += report.getVerified();
+            unchanged += report.getUnchanged();
+            unrecorded += report.getUnrecorded();
+            tampered += report.getTampered().size();
+            missing += report.getMissing().size();
+        }
+
+        @Override
+        public void error(String message) {
+            if (error == null)
+                error = message;
+        }
+
+        /**
+         * Gets the response line, {@code ERR} if the command could not be run on
+         * one of the workspaces
+         */
+        String response() {
+            if (error != null)
+                return "ERR " + error;
+            if (verb.equals("STATUS"))
+                return String.format("OK locked=%d unlocked=%d missing=%d drifted=%d", locked, unlocked, missing,
+                        drifted);
+            if (verb.equals("VERIFY"))
+                return String.format("OK verified=%d unchanged=%d unrecorded=%d tampered=%d missing=%d", verified,
+                        unchanged, unrecorded, tampered, missing);
+            return String.format("OK workspaces=%d succeeded=%d skipped=%d failed=%d micros=%d", workspaces,
+                    succeeded, skipped, failed, micros);
+        }
+
+    }
+
+}
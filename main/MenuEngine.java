@@ -0,0 +1,112 @@
+package main;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Runs the menus of the application in a single loop. Each menu is a list of
+ * options, each registered with the {@link Command} run when it is chosen, and
+ * everything that has to carry over from one choice to the next is kept in the
+ * {@link Session}. Moving to another menu only changes which menu the session
+ * shows next, so the call stack stays the same depth however long the session
+ * runs.
+ */
+
+public class MenuEngine {
+
+    /**
+     * A menu of options, shown with its heading followed by every option in the
+     * order they were added
+     */
+    public static class Menu {
+        private final Function<Session, String> heading;
+        private final String afterEach;
+        private final Map<String, String> labels = new LinkedHashMap<>();
+        private final Map<String, Command> commands = new LinkedHashMap<>();
+
+        /**
+         * Constructs an empty {@code Menu}
+         *
+         * @param heading   Gives what is printed above the options, which can
+         *                  depend on the session
+         * @param afterEach Printed after every command chosen from this menu, or
+         *                  {@code null} for nothing
+         */
+        public Menu(Function<Session, String> heading, String afterEach) {
+            this.heading = heading;
+            this.afterEach = afterEach;
+        }
+
+        /**
+         * Registers an option
+         *
+         * @param key     What the user enters to choose the option
+         * @param label   The description of the option
+         * @param command The command run when the option is chosen
+         * @return This menu, so options can be chained
+         */
+        public Menu add(String key, String label, Command command) {
+            labels.put(key, label);
+            commands.put(key, command);
+            return this;
+        }
+
+        /**
+         * Gets the command registered for an option
+         *
+         * @param key What the user entered
+         * @return The command, or {@code null} if there is no such option
+         */
+        public Command get(String key) {
+            return commands.get(key);
+        }
+
+        void print(Session s) {
+            PrintStream out = s.out();
+            out.print(heading.apply(s));
+            for (Map.Entry<String, String> e : labels.entrySet())
+                out.printf("%s. %s\n", e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Shows the session's menu and runs the chosen command, over and over until
+     * the session is ended or there is no more input. An error in a command,
+     * whether it could not read or write a file or failed any other way, is
+     * reported and the menu shown again.
+     *
+     * @param s The session to run
+     */
+    public void run(Session s) {
+        while (s.isRunning()) {
+            s.getMenu().print(s);
+
+            String choice = s.readLine();
+            if (choice == null) {
+                s.end();
+                break;
+            }
+
+            Menu m = s.getMenu();
+            Command c = m.get(choice.trim());
+            if (c == null) {
+                s.out().println("Invalid option, try again!");
+                continue;
+            }
+
+            try {
+                c.run(s);
+            } catch (IOException | RuntimeException e) {
+                // one bad command, such as a path that can not be read, must not end the session
+                s.out().printf("Error: %s\n", e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+
+            if (m.afterEach != null && s.isRunning())
+                s.out().println(m.afterEach);
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package main;
+
+import java.nio.file.Path;
+
+import find.BulkResult;
+import find.IntegrityReport;
+import find.StatusReport;
+
+/**
+ * Where the commands of {@link App} report what they did to each workspace of
+ * a {@link Session}. The commands only decide what is done and when the
+ * account is updated, each front end gives its session a reporter of its own,
+ * so the menus print sentences for the user, {@link BatchCli} prints a line or
+ * a JSON object per workspace and {@link LockDaemon} sums every workspace into
+ * its one line response.
+ */
+
+public interface Reporter {
+
+    /**
+     * Reports a lock, unlock or undo of a workspace
+     *
+     * @param workspace The workspace directory
+     * @param command   Either lock, unlock or undo
+     * @param result    What the command did to the workspace's files
+     */
+    void changed(Path workspace, String command, BulkResult result);
+
+    /**
+     * Reports the lock status of a workspace
+     *
+     * @param workspace The workspace directory
+     * @param report    The status of the workspace's files
+     */
+    void status(Path workspace, StatusReport report);
+
+    /**
+     * Reports the content check of a workspace
+     *
+     * @param workspace The workspace directory
+     * @param report    What was found of the workspace's files
+     */
+    void verified(Path workspace, IntegrityReport report);
+
+    /**
+     * Reports a command that could not be run on a workspace at all
+     *
+     * @param message Why the command could not be run
+     */
+    void error(String message);
+
+}
@@ -0,0 +1,215 @@
+package main;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Scanner;
+
+import attributes.Account;
+import find.FileSearcher;
+import find.WorkspaceRegistry;
+
+/**
+ * State of a single user session, the logged in account, the workspaces it has
+ * visited and the one currently selected, the menu being shown and where input
+ * is read from and output written to. Holding this in one object rather than on
+ * the call stack lets {@link MenuEngine} run any number of commands in a flat
+ * loop.
+ *
+ * The same commands are run by the front ends that take no input. A session that
+ * is not interactive works on the workspaces it was given rather than the one
+ * selected, answers yes to every confirmation without reading any input, and
+ * each front end reports what the commands did through its own
+ * {@link Reporter}.
+ */
+
+public class Session {
+
+    private final Account account;
+    private final WorkspaceRegistry workspaces;
+    private FileSearcher workspace;
+
+    private final Scanner in;
+    private final PrintStream out;
+    private final boolean interactive;
+    private final List<Path> selected;
+    private final Reporter reporter;
+
+    private MenuEngine.Menu menu;
+    private boolean running = true;
+
+    /**
+     * Constructs a {@code Session} for an account that has already been logged
+     * into
+     *
+     * @param account    The logged in account
+     * @param workspaces The registry holding every workspace of the session
+     * @param in         Where the user's choices are read from
+     * @param out        Where everything is printed to
+     */
+    public Session(Account account, WorkspaceRegistry workspaces, Scanner in, PrintStream out) {
+        this.account = account;
+        this.workspaces = workspaces;
+        this.in = in;
+        this.out = out;
+        this.interactive = true;
+        this.selected = null;
+        this.reporter = new App.Console(out);
+    }
+
+    /**
+     * Constructs a {@code Session} that is not interactive, for running commands
+     * on workspaces that have already been added to the registry
+     *
+     * @param account    The logged in account
+     * @param workspaces The registry holding the workspaces
+     * @param selected   The workspaces the commands work on
+     * @param out        Where anything besides what is reported is printed to
+     * @param reporter   Where the commands report what they did
+     */
+    public Session(Account account, WorkspaceRegistry workspaces, List<Path> selected, PrintStream out,
+            Reporter reporter) {
+        this.account = account;
+        this.workspaces = workspaces;
+        this.in = new Scanner("");
+        this.out = out;
+        this.interactive = false;
+        this.selected = selected;
+        this.reporter = reporter;
+    }
+
+    /**
+     * Gets the logged in account
+     *
+     * @return The session's account
+     */
+    public Account getAccount() {
+        return account;
+    }
+
+    /**
+     * Gets the registry holding every workspace visited in the session
+     *
+     * @return The session's registry
+     */
+    public WorkspaceRegistry getWorkspaces() {
+        return workspaces;
+    }
+
+    /**
+     * Gets the workspace currently selected
+     *
+     * @return The workspace's {@code FileSearcher}, or {@code null} if none has
+     *         been selected
+     */
+    public FileSearcher getWorkspace() {
+        return workspace;
+    }
+
+    /**
+     * Selects the workspace the commands work on
+     *
+     * @param workspace The workspace's {@code FileSearcher}
+     */
+    public void setWorkspace(FileSearcher workspace) {
+        this.workspace = workspace;
+    }
+
+    /**
+     * Gets the workspaces the commands work on, the ones the session was given if
+     * it is not interactive, otherwise the one currently selected
+     *
+     * @return The workspace directories
+     */
+    public List<Path> getSelected() {
+        if (selected != null)
+            return selected;
+        return workspace == null ? List.of() : List.of(workspace.getDirectory());
+    }
+
+    /**
+     * Checks if the session reads its answers from the user
+     *
+     * @return {@code true} if confirmations are asked
+     */
+    public boolean isInteractive() {
+        return interactive;
+    }
+
+    /**
+     * Gets where the commands report what they did
+     *
+     * @return The session's reporter
+     */
+    public Reporter report() {
+        return reporter;
+    }
+
+    /**
+     * Gets where the session prints to
+     *
+     * @return The output of the session
+     */
+    public PrintStream out() {
+        return out;
+    }
+
+    /**
+     * Reads the next line of input
+     *
+     * @return The line, or {@code null} once there is no more input
+     */
+    public String readLine() {
+        return in.hasNextLine() ? in.nextLine() : null;
+    }
+
+    /**
+     * Asks the user a yes or no question, which is always accepted if the session
+     * is not interactive
+     *
+     * @param question The question, printed followed by (y/n)
+     * @return {@code true} if the user answered y
+     */
+    public boolean confirm(String question) {
+        if (!interactive)
+            return true;
+
+        out.printf("%s (y/n)\n", question);
+        return "y".equals(readLine());
+    }
+
+    /**
+     * Gets the menu shown before the next choice is read
+     *
+     * @return The current menu
+     */
+    public MenuEngine.Menu getMenu() {
+        return menu;
+    }
+
+    /**
+     * Changes the menu shown before the next choice is read
+     *
+     * @param menu The menu to show
+     */
+    public void setMenu(MenuEngine.Menu menu) {
+        this.menu = menu;
+    }
+
+    /**
+     * Checks if the session has not been ended
+     *
+     * @return {@code true} until {@link #end()} is called
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Ends the session, the {@code MenuEngine} returns after the current command
+     */
+    public void end() {
+        this.running = false;
+    }
+
+}
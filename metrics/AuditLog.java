@@ -0,0 +1,684 @@
+package metrics;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Audit trail of every file locked or unlocked and every login, shared by the
+ * whole application through {@link #get()}. Recording an entry only claims a
+ * slot in a lock free ring buffer and fills it in, so it can be left on for
+ * every file of every operation. A single background thread drains the ring in
+ * batches into gzip compressed segments in the audit folder next to info.dat,
+ * starting a new segment once the current one holds {@value #SEGMENT_BYTES}
+ * bytes or is an hour old and deleting the oldest once there are more than the
+ * wfs.audit.segments system property allows. Each run of the application
+ * appends its own gzip member to the newest segment while it is young enough
+ * and no other run is writing to it. A run holds a lock on the segment it
+ * writes for as long as it has it open, and starts a segment of its own when
+ * it can not get the lock on the newest one, so the members of two runs never
+ * end up mixed together in one segment. Each batch is flushed as a complete gzip block so a segment can be read while
+ * it is still being written.
+ * Should the ring fill up, recording waits for the writer rather than dropping
+ * entries, unless the writer has stopped, as it has once the application is
+ * shutting down, when there is nothing left to wait for. Several runs of the
+ * application, such as the daemon and a batch run, can each be writing a
+ * segment of their own at the same time, so segments can overlap in time.
+ * Setting the wfs.audit system property to false turns auditing off.
+ */
+
+public class AuditLog {
+
+    // Folder the segments are kept in, next to info.dat
+    public static final String AUDIT_DIR = "audit";
+
+    // Uncompressed bytes written to a segment before a new one is started
+    public static final long SEGMENT_BYTES = 16L * 1024 * 1024;
+
+    private static final long SEGMENT_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int DEFAULT_SEGMENTS = 64;
+
+    private static final String SEGMENT_PREFIX = "audit-";
+    private static final String SEGMENT_SUFFIX = ".log.gz";
+    private static final String SEGMENT_NAME = "audit-\\d{13}(-\\d+)?\\.log\\.gz";
+
+    // Slots in the ring, a power of two
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * What an audit entry records
+     */
+    public enum Kind {
+        LOCK, UNLOCK, LOGIN
+    }
+
+    /**
+     * A single audit entry, as read back by
+     * {@link AuditLog#query(String, long, long)}
+     */
+    public static class Entry {
+        private final long time;
+        private final Kind kind;
+        private final boolean ok;
+        private final String user;
+        private final String path;
+
+        Entry(long time, Kind kind, boolean ok, String user, String path) {
+            this.time = time;
+            this.kind = kind;
+            this.ok = ok;
+            this.user = user;
+            this.path = path;
+        }
+
+        /**
+         * Gets when the entry was recorded
+         *
+         * @return The time in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Gets what the entry records
+         *
+         * @return The kind of entry
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * Checks if the lock, unlock or login succeeded
+         *
+         * @return {@code true} if it succeeded
+         */
+        public boolean isOk() {
+            return ok;
+        }
+
+        /**
+         * Gets the user logged in when the entry was recorded, or who tried to log
+         * in
+         *
+         * @return The username
+         */
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * Gets the file that was locked or unlocked
+         *
+         * @return The absolute path of the file, or {@code null} for a login
+         */
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%tF %<tT.%<tL %s %s %s%s", time, user, kind, ok ? "ok" : "failed",
+                    path == null ? "" : " " + path);
+        }
+    }
+
+    private static final AuditLog INSTANCE = new AuditLog(Paths.get(AUDIT_DIR),
+            !"false".equals(System.getProperty("wfs.audit")),
+            Integer.getInteger("wfs.audit.segments", DEFAULT_SEGMENTS));
+
+    private final Path dir;
+    private final int maxSegments;
+    private volatile boolean enabled;
+    private volatile String user = System.getProperty("user.name", "unknown");
+
+    // The ring: a slot holds entry seq once sequences[seq & MASK] is seq + 1
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final long[] times = new long[CAPACITY];
+    private final Kind[] kinds = new Kind[CAPACITY];
+    private final boolean[] oks = new boolean[CAPACITY];
+    private final String[] users = new String[CAPACITY];
+    private final Object[] paths = new Object[CAPACITY];
+    private final AtomicLong tail = new AtomicLong();
+
+    // Read by the writer thread only, published for flush
+    private volatile long head;
+
+    private volatile Thread writer;
+    private volatile boolean closing;
+
+    // The segment being written, used by the writer thread only
+    private Writer segment;
+    private long segmentBytes;
+    private long segmentStart;
+
+    private AuditLog(Path dir, boolean enabled, int maxSegments) {
+        this.dir = dir;
+        this.enabled = enabled;
+        this.maxSegments = Math.max(1, maxSegments);
+        for (int i = 0; i < CAPACITY; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * Gets the audit log of the application
+     *
+     * @return The shared {@code AuditLog}
+     */
+    public static AuditLog get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Turns auditing on or off, entries recorded while it is off are ignored
+     *
+     * @param enabled If entries should be recorded
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Checks if auditing is on
+     *
+     * @return {@code true} if entries are recorded
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the user every following entry is recorded for, called once a user
+     * has logged in
+     *
+     * @param user The username
+     */
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    /**
+     * Records a file being locked or unlocked. The path is only turned into text
+     * on the writer thread, so a {@code File} or anything whose {@code toString}
+     * is the file's absolute path can be given.
+     *
+     * @param kind Either {@link Kind#LOCK} or {@link Kind#UNLOCK}
+     * @param path The file
+     * @param ok   If the file was changed
+     */
+    public void file(Kind kind, Object path, boolean ok) {
+        if (enabled)
+            publish(kind, user, path, ok);
+    }
+
+    /**
+     * Records a login attempt
+     *
+     * @param user The username that was tried
+     * @param ok   If the login succeeded
+     */
+    public void login(String user, boolean ok) {
+        if (ok)
+            this.user = user;
+        if (enabled)
+            publish(Kind.LOGIN, user, null, ok);
+    }
+
+    /**
+     * Claims the next slot of the ring, waits for the writer to have emptied it
+     * if the ring has wrapped around, and fills it in. If the writer has stopped
+     * while the ring is full the entry is dropped, as the slot would never be
+     * emptied.
+     */
+    private void publish(Kind kind, String user, Object path, boolean ok) {
+        if (writer == null)
+            start();
+
+        long seq = tail.getAndIncrement();
+        int i = (int) (seq & MASK);
+        while (sequences.get(i) != seq) {
+            // the ring is full, let the writer run
+            Thread t = writer;
+            if (!t.isAlive())
+                return;
+            LockSupport.unpark(t);
+            Thread.yield();
+        }
+
+        times[i] = System.currentTimeMillis();
+        kinds[i] = kind;
+        oks[i] = ok;
+        users[i] = user;
+        paths[i] = path;
+        sequences.set(i, seq + 1);
+    }
+
+    private synchronized void start() {
+        if (writer != null)
+            return;
+
+        Thread t = new Thread(this::drain, "audit-writer");
+        t.setDaemon(true);
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "audit-close"));
+        writer = t;
+    }
+
+    /**
+     * Loop of the writer thread, taking every filled slot in order and writing
+     * them out a batch at a time
+     */
+    private void drain() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        long next = head;
+        long batchStart = 0;
+
+        while (true) {
+            int i = (int) (next & MASK);
+            if (sequences.get(i) == next + 1) {
+                if (batch.length() == 0)
+                    batchStart = times[i];
+                append(batch, times[i], kinds[i], oks[i], users[i], paths[i]);
+                users[i] = null;
+                paths[i] = null;
+                sequences.set(i, next + CAPACITY);
+                next++;
+
+                if (batch.length() < 60 * 1024)
+                    continue;
+            }
+
+            if (batch.length() > 0) {
+                write(batch, batchStart);
+                batch.setLength(0);
+            }
+            head = next;
+
+            if (closing && sequences.get((int) (next & MASK)) != next + 1)
+                return;
+            if (sequences.get((int) (next & MASK)) != next + 1)
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+    }
+
+    private static void append(StringBuilder b, long time, Kind kind, boolean ok, String user, Object path) {
+        b.append(time).append('\t').append(kind).append('\t').append(ok ? "ok" : "failed").append('\t');
+        escape(b, user);
+        b.append('\t');
+        if (path == null)
+            b.append('-');
+        else
+            escape(b, path instanceof File ? absolute((File) path) : path.toString());
+        b.append('\n');
+    }
+
+    private static String absolute(File f) {
+        return f.isAbsolute() ? f.getPath() : f.getAbsolutePath();
+    }
+
+    private static void escape(StringBuilder b, String s) {
+        if (s.indexOf('\\') < 0 && s.indexOf('\t') < 0 && s.indexOf('\n') < 0) {
+            b.append(s);
+            return;
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\')
+                b.append("\\\\");
+            else if (c == '\t')
+                b.append("\\t");
+            else if (c == '\n')
+                b.append("\\n");
+            else
+                b.append(c);
+        }
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0)
+            return s;
+
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char e = s.charAt(++i);
+                b.append(e == 't' ? '\t' : e == 'n' ? '\n' : e);
+            } else
+                b.append(c);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Writes a batch to the current segment and flushes it as a complete gzip
+     * block, starting a new segment first if the current one is full or old. A
+     * batch that can not be written is reported and dropped, auditing never
+     * fails an operation.
+     */
+    private void write(StringBuilder batch, long batchStart) {
+        try {
+            if (segment != null && (segmentBytes >= SEGMENT_BYTES || batchStart - segmentStart >= SEGMENT_MILLIS)) {
+                segment.close();
+                segment = null;
+            }
+
+            if (segment == null) {
+                Files.createDirectories(dir);
+                List<Path> segments = segments();
+                Path last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+                FileChannel ch = null;
+                if (last != null && batchStart - startOf(last) < SEGMENT_MILLIS)
+                    ch = appendTo(last);
+
+                if (ch != null) {
+                    segment = open(ch);
+                    segmentBytes = ch.size();
+                    segmentStart = startOf(last);
+                } else {
+                    ch = create(batchStart);
+                    segment = open(ch);
+                    segmentBytes = 0;
+                    segmentStart = batchStart;
+                    prune();
+                }
+            }
+
+            segment.append(batch);
+            segment.flush();
+            segmentBytes += batch.length();
+        } catch (IOException e) {
+            System.err.println("Audit log can not be written: " + e.getMessage());
+            segment = null;
+        }
+    }
+
+    /**
+     * Opens the newest segment to append to, if no other run has it open and it
+     * ends with a finished gzip member. The lock is taken before the segment is
+     * checked, so no other run can start appending to it in between.
+     *
+     * @return The segment, locked, or {@code null} if it can not be appended to
+     */
+    private static FileChannel appendTo(Path file) {
+        FileChannel ch = null;
+        try {
+            ch = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (ch.tryLock() != null && isFinished(file))
+                return ch;
+        } catch (IOException | OverlappingFileLockException e) {
+            // gone, or written by another run, start a new one
+        }
+
+        try {
+            if (ch != null)
+                ch.close();
+        } catch (IOException e) {
+            // nothing was written to it
+        }
+        return null;
+    }
+
+    /**
+     * Creates a segment of this run's own, named after the time of its first
+     * batch and numbered when another run has created one at the same time
+     *
+     * @return The new segment, locked
+     */
+    private FileChannel create(long batchStart) throws IOException {
+        Path file = dir.resolve(String.format("%s%013d%s", SEGMENT_PREFIX, batchStart, SEGMENT_SUFFIX));
+        for (int n = 1;; n++) {
+            try {
+                FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                try {
+                    // only held for a moment by a run checking if it can append
+                    ch.lock();
+                } catch (IOException e) {
+                    ch.close();
+                    throw e;
+                }
+                return ch;
+            } catch (FileAlreadyExistsException e) {
+                file = dir.resolve(String.format("%s%013d-%d%s", SEGMENT_PREFIX, batchStart, n, SEGMENT_SUFFIX));
+            }
+        }
+    }
+
+    /**
+     * Starts a new gzip member at the end of a segment, which a reader sees as
+     * following on from any members already in it. Closing the writer closes
+     * the segment, and lets other runs append to it.
+     */
+    private static Writer open(FileChannel ch) throws IOException {
+        OutputStream out;
+        try {
+            out = new GZIPOutputStream(Channels.newOutputStream(ch), 64 * 1024, true) {
+                {
+                    // audit lines are repetitive enough that the fastest level
+                    // compresses them almost as well, at a fraction of the cost
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks if a segment left by an earlier run ends with a finished gzip member,
+     * so more can be appended to it. A run that was killed leaves its last member
+     * unfinished, and anything appended after it could not be read back. Only
+     * small segments are checked, a large one is never appended to.
+     */
+    private static boolean isFinished(Path segment) {
+        try {
+            if (Files.size(segment) > SEGMENT_BYTES / 8)
+                return false;
+            try (GZIPInputStream in = new GZIPInputStream(Files.newInputStream(segment))) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the oldest segments beyond the most that are kept
+     */
+    private void prune() throws IOException {
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size() - maxSegments; i++)
+            Files.deleteIfExists(segments.get(i));
+    }
+
+    /**
+     * Gets every segment, oldest first
+     */
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return segments;
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : ds) {
+                if (p.getFileName().toString().matches(SEGMENT_NAME))
+                    segments.add(p);
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static long startOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), SEGMENT_PREFIX.length() + 13));
+    }
+
+    /**
+     * Waits until every entry recorded so far has been written
+     *
+     * @param timeout The longest to wait
+     * @param unit    The unit of timeout
+     * @return {@code true} if every entry was written in time
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        long until = System.nanoTime() + unit.toNanos(timeout);
+        long target = tail.get();
+
+        while (writer != null && writer.isAlive() && head < target) {
+            if (System.nanoTime() - until >= 0)
+                return false;
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    /**
+     * Reads back every entry for a file under a path, recorded within a span of
+     * time, waiting first for the entries already recorded to be written. Only
+     * the segments that can hold entries from the span are read, those started
+     * no later than its end and last written to no earlier than its start. Each
+     * batch is written after its entries were recorded, so no entry in a segment
+     * is newer than the segment's modified time, however the segments of
+     * different runs overlap.
+     *
+     * @param pathPrefix Only entries for files under this path, or {@code null}
+     *                   for every entry including logins
+     * @param from       The earliest time, in milliseconds since the epoch
+     * @param to         The latest time, in milliseconds since the epoch
+     * @return The matching entries, oldest first
+     * @throws IOException if a segment can not be read
+     */
+    public List<Entry> query(String pathPrefix, long from, long to) throws IOException {
+        flush(5, TimeUnit.SECONDS);
+
+        List<Path> segments = segments();
+        List<Entry> entries = new ArrayList<>();
+
+        for (Path segment : segments) {
+            if (startOf(segment) > to)
+                break;
+            if (Files.getLastModifiedTime(segment).toMillis() < from)
+                continue;
+
+            try (BufferedReader in = new BufferedReader(new StringReader(read(segment)))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", 5);
+                    if (f.length != 5)
+                        continue;
+
+                    long time;
+                    Kind kind;
+                    try {
+                        time = Long.parseLong(f[0]);
+                        kind = Kind.valueOf(f[1]);
+                    } catch (IllegalArgumentException e) {
+                        // a damaged line, the rest of the segment is still read
+                        continue;
+                    }
+                    String path = f[4].equals("-") ? null : unescape(f[4]);
+                    if (time < from || time > to)
+                        continue;
+                    if (pathPrefix != null && (path == null || !Paths.get(path).startsWith(pathPrefix)))
+                        continue;
+
+                    entries.add(new Entry(time, kind, f[2].equals("ok"), unescape(f[3]), path));
+                }
+            }
+        }
+
+        // segments written by different runs at the same time interleave
+        entries.sort(Comparator.comparingLong(Entry::getTime));
+        return entries;
+    }
+
+    /**
+     * Reads as much of a segment as can be decompressed. A segment still being
+     * written, or left by a run that was killed, has no end to its last gzip
+     * member, but every batch before that point was flushed whole. A segment
+     * damaged part way is read up to the damage.
+     */
+    private static String read(Path segment) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(Files.newInputStream(segment))) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                data.write(buf, 0, n);
+        } catch (EOFException e) {
+            // the last member is not finished
+        } catch (ZipException e) {
+            // the rest of the segment is damaged
+        }
+
+        // drop a line cut off part way
+        byte[] bytes = data.toByteArray();
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n')
+            end--;
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes every entry recorded so far and finishes the current segment, run
+     * when the JVM shuts down
+     */
+    void close() {
+        closing = true;
+        Thread t = writer;
+        if (t == null)
+            return;
+
+        LockSupport.unpark(t);
+        try {
+            t.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            if (segment != null)
+                segment.close();
+        } catch (IOException e) {
+            // the entries were already flushed with the last batch
+        }
+    }
+
+}
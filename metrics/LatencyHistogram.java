@@ -0,0 +1,112 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Lock free histogram of latencies in nanoseconds, laid out the same way as an
+ * HdrHistogram: every power of two is split into a fixed number of linear sub
+ * buckets, so any recorded value is reported back to within an eighth of
+ * itself while the whole range of a {@code long} fits in 512 counters. Recording
+ * a value is a single atomic increment, so it is cheap enough to be left on for
+ * every file of every operation.
+ */
+
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a single latency
+     *
+     * @param nanos The latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts.incrementAndGet(index(v));
+        max.accumulate(v);
+    }
+
+    /**
+     * Gets the number of latencies recorded
+     *
+     * @return The count of recorded values
+     */
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * Gets the largest latency recorded
+     *
+     * @return The maximum in nanoseconds
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Gets the latency at or below which the given share of recorded latencies
+     * fall, as the upper bound of the bucket it lands in
+     *
+     * @param percentile The percentile, from 0 to 100
+     * @return The latency in nanoseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank))
+                return Math.min(upperBound(i), max());
+        }
+
+        return max();
+    }
+
+    /**
+     * Clears every recorded latency
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        max.reset();
+    }
+
+    private static int index(long v) {
+        if (v < SUB_BUCKETS)
+            return (int) v;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int magnitude = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long base = (SUB_BUCKETS + sub) << (magnitude - SUB_BITS);
+        return base + (1L << (magnitude - SUB_BITS)) - 1;
+    }
+
+}
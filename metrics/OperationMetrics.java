@@ -0,0 +1,280 @@
+package metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for every workspace operation, shared by the
+ * whole application through {@link #get()}. Counters are {@code LongAdder}s and
+ * latencies go into {@link LatencyHistogram}s, so recording is lock free and
+ * can be left on in production. The metrics are published as an MBean under
+ * {@value #OBJECT_NAME} and, when the wfs.metrics.file system property names a
+ * file, written to it as JSON after every operation.
+ */
+
+public class OperationMetrics implements OperationMetricsMBean {
+
+    public static final String OBJECT_NAME = "workspace.security:type=OperationMetrics";
+
+    // System property naming the file the JSON dump is written to
+    public static final String DUMP_PROPERTY = "wfs.metrics.file";
+
+    private static final OperationMetrics INSTANCE = new OperationMetrics();
+
+    /*
+     * Starting the platform MBean server takes longer than most operations, so the
+     * MBean is registered in the background rather than on the first operation
+     */
+    static {
+        Thread register = new Thread(() -> {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            } catch (JMException | SecurityException e) {
+                // metrics are still recorded and dumped, just not published
+            }
+        }, "metrics-mbean");
+        register.setDaemon(true);
+        register.start();
+    }
+
+    private final LongAdder filesDiscovered = new LongAdder();
+    private final LongAdder directoriesVisited = new LongAdder();
+    private final LongAdder statusChecks = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    private final LatencyHistogram scanLatency = new LatencyHistogram();
+    private final LatencyHistogram lockLatency = new LatencyHistogram();
+    private final LatencyHistogram unlockLatency = new LatencyHistogram();
+
+    private OperationMetrics() {
+    }
+
+    /**
+     * Gets the metrics of the application
+     *
+     * @return The shared {@code OperationMetrics}
+     */
+    public static OperationMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records source files found while searching a workspace
+     *
+     * @param count The number of files found
+     */
+    public void fileDiscovered(long count) {
+        filesDiscovered.add(count);
+    }
+
+    /**
+     * Records a folder visited while searching a workspace
+     */
+    public void directoryVisited() {
+        directoriesVisited.increment();
+    }
+
+    /**
+     * Records how long searching a whole workspace took
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void scanned(long nanos) {
+        scanLatency.record(nanos);
+    }
+
+    /**
+     * Records how long locking a single file took
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void locked(long nanos) {
+        lockLatency.record(nanos);
+    }
+
+    /**
+     * Records how long unlocking a single file took
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void unlocked(long nanos) {
+        unlockLatency.record(nanos);
+    }
+
+    /**
+     * Records the lock status of a single file being checked
+     */
+    public void statusChecked() {
+        statusChecks.increment();
+    }
+
+    /**
+     * Records a bulk operation failing on a single file
+     */
+    public void failed() {
+        failures.increment();
+    }
+
+    /**
+     * Records a bulk operation skipping a file already in the wanted state
+     */
+    public void skipped() {
+        skipped.increment();
+    }
+
+    /**
+     * Writes the metrics as JSON to the file named by the wfs.metrics.file system
+     * property, if it is set. Written to a temporary file of its own first so a
+     * reader never sees half a dump, even while other threads dump at the same
+     * time. Failing to write the dump never fails the operation.
+     */
+    public void dump() {
+        String target = System.getProperty(DUMP_PROPERTY);
+        if (target == null || target.isEmpty())
+            return;
+
+        Path file = Paths.get(target).toAbsolutePath();
+        Path tmp = null;
+        try {
+            // a temporary file of its own, as workspaces dump from many threads
+            tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Files.write(tmp, getJson().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the dump is best effort
+        } finally {
+            deleteQuietly(tmp);
+        }
+    }
+
+    private static void deleteQuietly(Path tmp) {
+        if (tmp == null)
+            return;
+        try {
+            Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+            // nothing more to do about it
+        }
+    }
+
+    @Override
+    public long getFilesDiscovered() {
+        return filesDiscovered.sum();
+    }
+
+    @Override
+    public long getDirectoriesVisited() {
+        return directoriesVisited.sum();
+    }
+
+    @Override
+    public long getScans() {
+        return scanLatency.count();
+    }
+
+    @Override
+    public long getScanLatencyP50Micros() {
+        return scanLatency.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getScanLatencyP99Micros() {
+        return scanLatency.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getScanLatencyMaxMicros() {
+        return scanLatency.max() / 1000;
+    }
+
+    @Override
+    public long getLocks() {
+        return lockLatency.count();
+    }
+
+    @Override
+    public long getLockLatencyP50Micros() {
+        return lockLatency.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getLockLatencyP99Micros() {
+        return lockLatency.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getLockLatencyP999Micros() {
+        return lockLatency.percentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getUnlocks() {
+        return unlockLatency.count();
+    }
+
+    @Override
+    public long getUnlockLatencyP50Micros() {
+        return unlockLatency.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getUnlockLatencyP99Micros() {
+        return unlockLatency.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getUnlockLatencyP999Micros() {
+        return unlockLatency.percentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getStatusChecks() {
+        return statusChecks.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    @Override
+    public String getJson() {
+        return String.format("{\"timestamp\":%d,\"filesDiscovered\":%d,\"directoriesVisited\":%d,"
+                + "\"scan\":%s,\"lock\":%s,\"unlock\":%s,\"statusChecks\":%d,\"failures\":%d,\"skipped\":%d}",
+                System.currentTimeMillis(), getFilesDiscovered(), getDirectoriesVisited(), json(scanLatency),
+                json(lockLatency), json(unlockLatency), getStatusChecks(), getFailures(), getSkipped());
+    }
+
+    @Override
+    public void reset() {
+        filesDiscovered.reset();
+        directoriesVisited.reset();
+        statusChecks.reset();
+        failures.reset();
+        skipped.reset();
+        scanLatency.reset();
+        lockLatency.reset();
+        unlockLatency.reset();
+    }
+
+    private static String json(LatencyHistogram h) {
+        return String.format("{\"count\":%d,\"p50Nanos\":%d,\"p99Nanos\":%d,\"p999Nanos\":%d,\"maxNanos\":%d}",
+                h.count(), h.percentile(50), h.percentile(99), h.percentile(99.9), h.max());
+    }
+
+}
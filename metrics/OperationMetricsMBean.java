@@ -0,0 +1,49 @@
+package metrics;
+
+/**
+ * Management interface of {@link OperationMetrics}, which is what is shown in
+ * JConsole, VisualVM or any other JMX client under
+ * {@value OperationMetrics#OBJECT_NAME}
+ */
+
+public interface OperationMetricsMBean {
+
+    long getFilesDiscovered();
+
+    long getDirectoriesVisited();
+
+    long getScans();
+
+    long getScanLatencyP50Micros();
+
+    long getScanLatencyP99Micros();
+
+    long getScanLatencyMaxMicros();
+
+    long getLocks();
+
+    long getLockLatencyP50Micros();
+
+    long getLockLatencyP99Micros();
+
+    long getLockLatencyP999Micros();
+
+    long getUnlocks();
+
+    long getUnlockLatencyP50Micros();
+
+    long getUnlockLatencyP99Micros();
+
+    long getUnlockLatencyP999Micros();
+
+    long getStatusChecks();
+
+    long getFailures();
+
+    long getSkipped();
+
+    String getJson();
+
+    void reset();
+
+}
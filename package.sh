@@ -0,0 +1,151 @@
+#!/usr/bin/env bash
+#
+# Builds a fast starting distribution of the program in the build folder, and
+# times how long it takes to start.
+#
+# The sources are compiled into build/wfs.jar, which is run once in a scratch
+# folder with a throw away account and workspace to record every class a login,
+# a scan and a lock, unlock and status check load. Every class of the main,
+# find, attributes and metrics packages is added to that list, and it is dumped
+# into an application class data sharing archive, build/wfs.jsa, which the JVM
+# maps into memory at startup rather than loading, verifying and linking each
+# class from the jar. build/wfs runs the program with the archive, taking the
+# same arguments as main.App.
+#
+# With --native, and GraalVM's native-image on the PATH, the training run is
+# traced for the reflection and resources the program uses and the jar is also
+# compiled ahead of time into the build/wfs-native executable.
+#
+# Last the startup time of the jar, the jar with the archive and the native
+# executable is timed over a number of runs: once to a usage error, which is
+# nothing but starting up, and once to a status check of the training
+# workspace, which includes logging in. The cost of a login is mostly the
+# password hash, set by wfs.kdf.iterations, not startup.
+#
+# Usage: ./package.sh [--native] [--runs N] [--no-bench]
+
+set -euo pipefail
+
+native=false
+runs=10
+bench=true
+
+while [ $# -gt 0 ]; do
+    case "$1" in
+        --native) native=true ;;
+        --runs) runs="$2"; shift ;;
+        --no-bench) bench=false ;;
+        *) echo "Usage: ./package.sh [--native] [--runs N] [--no-bench]" >&2; exit 2 ;;
+    esac
+    shift
+done
+
+root="$(cd "$(dirname "$0")" && pwd)"
+build="$root/build"
+jar="$build/wfs.jar"
+jsa="$build/wfs.jsa"
+
+rm -rf "$build"
+mkdir -p "$build/classes"
+
+echo "Compiling into $jar"
+find "$root/main" "$root/find" "$root/attributes" "$root/metrics" -name '*.java' > "$build/sources.txt"
+javac -d "$build/classes" @"$build/sources.txt"
+jar --create --file "$jar" --main-class main.App -C "$build/classes" .
+
+# A scratch folder with its own account, credentials and one workspace file,
+# so training never touches the real info.dat
+train="$build/train"
+mkdir -p "$train/ws/project/src"
+printf 'wfs\ntrain\nunlocked\n' > "$train/info.dat"
+printf 'wfs\ntrain\n' > "$train/cred"
+printf 'class A {}\n' > "$train/ws/project/src/A.java"
+
+# Runs the program from the scratch folder
+# Usage: train_run <java options...> -- <program arguments...>
+train_run() {
+    local opts=()
+    while [ "$1" != "--" ]; do
+        opts+=("$1")
+        shift
+    done
+    shift
+    (cd "$train" && java "${opts[@]}" -cp "$jar" main.App "$@" > /dev/null)
+}
+
+echo "Recording the classes a run loads"
+train_run -Xshare:off -XX:DumpLoadedClassList="$build/classes.lst" -- lock --workspace ws --credentials cred
+for cmd in status unlock; do
+    train_run -Xshare:off -XX:DumpLoadedClassList="$build/classes.$cmd.lst" -- $cmd --workspace ws --credentials cred
+    cat "$build/classes.$cmd.lst" >> "$build/classes.lst"
+done
+
+# Every class of the program, whether training reached it or not
+(cd "$build/classes" && find main find attributes metrics -name '*.class' | sed 's/\.class$//') >> "$build/classes.lst"
+sort -u -o "$build/classes.lst" "$build/classes.lst"
+
+echo "Dumping the class data sharing archive into $jsa"
+java -Xshare:dump -XX:SharedClassListFile="$build/classes.lst" -XX:SharedArchiveFile="$jsa" -cp "$jar" \
+    > "$build/dump.log" 2>&1 || { cat "$build/dump.log" >&2; exit 1; }
+
+cat > "$build/wfs" <<EOF
+#!/usr/bin/env bash
+exec java -XX:SharedArchiveFile="$jsa" -cp "$jar" main.App "\$@"
+EOF
+chmod +x "$build/wfs"
+
+if $native; then
+    if ! command -v native-image > /dev/null; then
+        echo "native-image is not on the PATH, skipping the native executable" >&2
+        native=false
+    else
+        echo "Tracing the reflection and resources the program uses"
+        for cmd in lock status unlock; do
+            train_run -agentlib:native-image-agent=config-merge-dir="$build/native-config" \
+                -- $cmd --workspace ws --credentials cred
+        done
+
+        echo "Compiling $build/wfs-native ahead of time"
+        native-image --no-fallback -H:ConfigurationFileDirectories="$build/native-config" \
+            -jar "$jar" -o "$build/wfs-native" > "$build/native.log" 2>&1 \
+            || { cat "$build/native.log" >&2; exit 1; }
+    fi
+fi
+
+$bench || exit 0
+
+# Prints the mean wall clock time of a command over the runs, in milliseconds
+# Usage: timed <name> <command...>
+timed() {
+    local name="$1"
+    shift
+    local start end
+    # once untimed, so the file system cache is warm
+    (cd "$train" && "$@" > /dev/null 2>&1) || true
+    start=$(date +%s%N)
+    for ((i = 0; i < runs; i++)); do
+        (cd "$train" && "$@" > /dev/null 2>&1) || true
+    done
+    end=$(date +%s%N)
+    local micros=$(((end - start) / runs / 1000))
+    printf '%-24s %8d.%d\n' "$name" $((micros / 1000)) $((micros % 1000 / 100))
+}
+
+# Fails straight away if the archive can not be mapped, rather than timing a
+# run that quietly went without it
+java -Xshare:on -XX:SharedArchiveFile="$jsa" -cp "$jar" main.App status > /dev/null 2>&1 || [ $? -eq 2 ]
+
+echo
+printf '%-24s %10s\n' "Startup, $runs runs" "ms per run"
+for probe in usage status; do
+    if [ $probe = usage ]; then
+        args=(status)
+    else
+        args=(status --workspace ws --credentials cred)
+    fi
+    timed "jar.$probe" java -cp "$jar" main.App "${args[@]}"
+    timed "cds.$probe" "$build/wfs" "${args[@]}"
+    if $native; then
+        timed "native.$probe" "$build/wfs-native" "${args[@]}"
+    fi
+done